@@ -0,0 +1,251 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.hardware.camera2.CameraManager;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Benchmarks opening the camera, switching the flash and the allocations per switch.
+ * <p/>
+ * Runs on a device with a flash. On devices without a flash the benchmarks are skipped with a log.
+ * The simulator benchmarks measure the overhead of the flash light itself as plain JUnit tests,
+ * see SimulatedFlashLightBenchmark.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class FlashLightBenchmark extends AndroidTestCase {
+
+    private static final Logger logger = Logger.getLogger(FlashLightBenchmark.class.getSimpleName());
+
+    private static final int OPEN_ITERATIONS = 10;
+    private static final int TOGGLE_ITERATIONS = 200;
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int CYCLE_ITERATIONS = 1000;
+    private static final int CYCLE_SAMPLE_INTERVAL = 100;
+
+    private CameraManager cameraManager;
+    private CameraCapabilities capabilities;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cameraManager = (CameraManager) getContext().getSystemService(Context.CAMERA_SERVICE);
+        capabilities = CameraCapabilities.getInstance(getContext(), cameraManager);
+    }
+
+    /**
+     * Measures openCamera() until the session is READY.
+     */
+    public void testOpenLatency() throws Exception {
+        SimpleFlashLightImpl flashLight = getSessionFlashLight();
+        if (flashLight == null) {
+            skipWithoutFlash();
+            return;
+        }
+
+        long[] openNanos = new long[OPEN_ITERATIONS];
+        for (int i = 0; i < OPEN_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            assertTrue(flashLight.openCamera());
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+            openNanos[i] = System.nanoTime() - start;
+
+            flashLight.closeCamera();
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        }
+
+        Benchmarks.report(logger, "open to READY", openNanos);
+    }
+
+    /**
+     * Logs the native heap over many open/close cycles of the session backend.
+     * The dummy buffer is reused, so the heap has to stay flat.
+     */
+    public void testNativeHeapOverOpenCloseCycles() throws Exception {
+        SimpleFlashLightImpl flashLight = getSessionFlashLight();
+        if (flashLight == null) {
+            skipWithoutFlash();
+            return;
+        }
+
+        long[] heapBytes = new long[CYCLE_ITERATIONS / CYCLE_SAMPLE_INTERVAL];
+        for (int i = 0; i < CYCLE_ITERATIONS; i++) {
+            assertTrue(flashLight.openCamera());
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+            flashLight.closeCamera();
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+
+            if ((i + 1) % CYCLE_SAMPLE_INTERVAL == 0) {
+                heapBytes[i / CYCLE_SAMPLE_INTERVAL] = Debug.getNativeHeapAllocatedSize();
+            }
+        }
+
+        logger.log(INFO, "native heap over " + CYCLE_ITERATIONS + " open/close cycles: "
+                + Arrays.toString(heapBytes) + " bytes, growth "
+                + (heapBytes[heapBytes.length - 1] - heapBytes[0]) + " bytes");
+    }
+
+    /**
+     * Checks the capture results of a torch session against the low-power profile.
+     */
+    public void testLowPowerProfileApplied() throws Exception {
+        SimpleFlashLightImpl flashLight = getSessionFlashLight();
+        if (flashLight == null) {
+            skipWithoutFlash();
+            return;
+        }
+
+        flashLight.setLowPowerProfileEnabled(true);
+        flashLight.openCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        try {
+            Benchmarks.toggle(flashLight, true);
+            long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+            while (flashLight.getProfileMismatchCount() < 0) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    fail("No capture result was checked against the profile");
+                }
+                Thread.yield();
+            }
+            logger.log(INFO, "low-power profile settings not applied: " + flashLight.getProfileMismatchCount());
+        } finally {
+            flashLight.closeCamera();
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        }
+    }
+
+    /**
+     * Measures turnOnFlash() and turnOffFlash() of the session backend
+     * until the flash state has changed.
+     */
+    public void testSessionToggleLatency() throws Exception {
+        SimpleFlashLightImpl flashLight = getSessionFlashLight();
+        if (flashLight == null) {
+            skipWithoutFlash();
+            return;
+        }
+
+        flashLight.openCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        try {
+            Benchmarks.measureToggles(logger, "session", flashLight, TOGGLE_ITERATIONS);
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    /**
+     * Measures turnOnFlash() and turnOffFlash() of the torch mode backend
+     * until the flash state has changed.
+     */
+    public void testTorchToggleLatency() throws Exception {
+        if (!SimpleFlashLightFactory.isTorchModeSupported() || !isFlashAvailable()) {
+            skipWithoutFlash();
+            return;
+        }
+
+        SimpleFlashLight flashLight = TorchFlashLight.getInstance(cameraManager, capabilities);
+        flashLight.openCamera();
+        try {
+            Benchmarks.measureToggles(logger, "torch", flashLight, TOGGLE_ITERATIONS);
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    /**
+     * Measures the allocations of all threads per toggle of the session backend.
+     */
+    @SuppressWarnings("deprecation")
+    public void testSessionAllocationsPerToggle() throws Exception {
+        SimpleFlashLightImpl flashLight = getSessionFlashLight();
+        if (flashLight == null) {
+            skipWithoutFlash();
+            return;
+        }
+
+        flashLight.openCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        try {
+            // warm up
+            Benchmarks.toggle(flashLight, true);
+            Benchmarks.toggle(flashLight, false);
+
+            Debug.resetGlobalAllocCounts();
+            Debug.startAllocCounting();
+            for (int i = 0; i < TOGGLE_ITERATIONS; i++) {
+                Benchmarks.toggle(flashLight, i % 2 == 0);
+            }
+            Debug.stopAllocCounting();
+
+            int allocations = Debug.getGlobalAllocCount();
+            int bytes = Debug.getGlobalAllocSize();
+            logger.log(INFO, "allocations per toggle: " + (allocations / TOGGLE_ITERATIONS)
+                    + " objects, " + (bytes / TOGGLE_ITERATIONS) + " bytes");
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    private SimpleFlashLightImpl getSessionFlashLight() {
+        if (!isFlashAvailable()) {
+            return null;
+        }
+        SimpleFlashLightImpl flashLight =
+                (SimpleFlashLightImpl) SimpleFlashLightImpl.getInstance(cameraManager, capabilities);
+        flashLight.setIdleTimeout(0);
+        return flashLight;
+    }
+
+    private boolean isFlashAvailable() {
+        return capabilities != null && capabilities.isFlashAvailable();
+    }
+
+    /**
+     * Logs the benchmark as skipped, so a run on a device without a flash is not taken for a result
+     */
+    private void skipWithoutFlash() {
+        logger.log(WARNING, getName() + " skipped: no usable flash on this device");
+    }
+}
@@ -0,0 +1,322 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+
+/**
+ * Hammers switchFlash, openCamera and closeCamera of the session based flash light
+ * from several threads against the camera simulator.
+ * <p/>
+ * After every round the threads are stopped and the flash light is left to settle.
+ * Then the reported flash state has to match the simulated torch and the simulator
+ * must not have seen any protocol violation.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class FlashLightStressTest extends AndroidTestCase {
+
+    private static final Logger logger = Logger.getLogger(FlashLightStressTest.class.getSimpleName());
+
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 20;
+    private static final long ROUND_MILLIS = 250;
+    private static final long SETTLE_TIMEOUT_MILLIS = 5000;
+
+    private SimulatedCameraBackend simulator;
+    private SimpleFlashLightImpl flashLight;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        simulator = new SimulatedCameraBackend();
+        simulator.setOpenDelay(3);
+        simulator.setConfigureDelay(5);
+        simulator.setCloseDelay(2);
+        flashLight = new SimpleFlashLightImpl(simulator, "0");
+        flashLight.setIdleTimeout(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            flashLight.closeCamera();
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        } finally {
+            flashLight.quit();
+            super.tearDown();
+        }
+    }
+
+    public void testConcurrentSwitchOpenClose() throws Exception {
+        runRounds("switch/open/close", false);
+    }
+
+    public void testConcurrentSwitchWithIdleRelease() throws Exception {
+        flashLight.setIdleTimeout(1);
+        runRounds("switch/open/close with idle release", false);
+    }
+
+    public void testConcurrentSwitchWithDisconnects() throws Exception {
+        simulator.setDisconnectRate(0.2);
+        simulator.setUnavailableDuration(20);
+        runRounds("switch/open/close with disconnects", true);
+    }
+
+    /**
+     * A lost camera is recovered on its own and gets the requested flash state back.
+     */
+    public void testRecoveryRestoresFlash() throws Exception {
+        simulator.setUnavailableDuration(100);
+        flashLight.openCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        flashLight.turnOnFlash();
+        SystemClock.sleep(20);
+        assertTrue("Flash not on", simulator.isTorchOn());
+
+        simulator.disconnect();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        assertTrue("Recovering flash light counts as opened", flashLight.isDeviceOpened());
+        assertTrue("Request kept while recovering", flashLight.isFlashRequested());
+
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        SystemClock.sleep(20);
+        assertTrue("Flash not restored", simulator.isTorchOn() && flashLight.isFlashOn());
+        assertEquals("Recoveries", 1, flashLight.getMetrics().getRecoveryLatency().getCount());
+
+        flashLight.closeCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        awaitBufferReleased();
+        assertEquals("Protocol violations", 0, simulator.getViolationCount());
+    }
+
+    /**
+     * Idle releases and reopens have to reuse the buffer of the first session.
+     */
+    public void testIdleReopenReusesBuffer() throws Exception {
+        flashLight.setIdleTimeout(1);
+        flashLight.openCamera();
+        for (int i = 0; i < 50; i++) {
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+            flashLight.turnOnFlash();
+            flashLight.turnOffFlash();
+            // the idle timeout releases the session, the next switch reopens it
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+            flashLight.turnOnFlash();
+        }
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        assertEquals("Buffer allocations", 1, simulator.getBufferAllocationCount());
+
+        flashLight.closeCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        awaitBufferReleased();
+        assertEquals("Protocol violations", 0, simulator.getViolationCount());
+    }
+
+    public void testBrokerArbitratesClients() throws Exception {
+        FlashLightBroker broker = new FlashLightBroker(flashLight);
+        SimpleFlashLight pattern = broker.acquire("pattern");
+        SimpleFlashLight audio = broker.acquire("audio");
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+
+        // the light stays on while any client claims it
+        pattern.turnOnFlash();
+        audio.turnOnFlash();
+        pattern.turnOffFlash();
+        assertTrue("Off of one client switched the other one off", flashLight.isFlashRequested());
+        audio.switchFlash();
+        assertFalse("Flash requested without claims", flashLight.isFlashRequested());
+
+        // a release drops only the claim of the released client
+        pattern.turnOnFlash();
+        audio.turnOnFlash();
+        pattern.closeCamera();
+        assertTrue("Flash requested by the remaining client", flashLight.isFlashRequested());
+        assertEquals("Session kept open", SimpleFlashLightImpl.SessionState.READY, flashLight.getSessionState());
+        audio.closeCamera();
+        assertFalse("Flash requested after the last release", flashLight.isFlashRequested());
+        assertEquals("Clients", 0, broker.getClientCount());
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        awaitBufferReleased();
+        assertEquals("Protocol violations", 0, simulator.getViolationCount());
+    }
+
+    public void testBrokerKeepsUserClaim() throws Exception {
+        FlashLightBroker broker = new FlashLightBroker(flashLight);
+        FlashLightBroker.Handle activity = broker.acquireForUser("activity");
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+
+        // the user claim outlives the handle of the activity
+        activity.turnOnFlash();
+        activity.closeCamera();
+        assertTrue("User claim dropped by the release", broker.isUserClaimed());
+        assertTrue("Flash not kept on for the user", flashLight.isFlashRequested());
+        assertEquals("Session kept open", SimpleFlashLightImpl.SessionState.READY, flashLight.getSessionState());
+
+        // any user handle switches the user claim
+        FlashLightBroker.Handle widget = broker.acquireForUser("widget");
+        assertTrue("User claim not shared", widget.isClaimed());
+        SimpleFlashLight pattern = broker.acquire("pattern");
+        pattern.turnOnFlash();
+        widget.switchFlash();
+        assertFalse("User claim kept after off", broker.isUserClaimed());
+        assertTrue("Off of the user switched the pattern off", flashLight.isFlashRequested());
+
+        pattern.closeCamera();
+        widget.closeCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        awaitBufferReleased();
+        assertEquals("Protocol violations", 0, simulator.getViolationCount());
+    }
+
+    public void testConcurrentSwitchWithConfigureFailures() throws Exception {
+        simulator.setConfigureFailureRate(0.2);
+        runRounds("switch/open/close with configure failures", true);
+    }
+
+    private void runRounds(String name, boolean failuresInjected) throws Exception {
+        final AtomicLong operations = new AtomicLong();
+        int inconsistencies = 0;
+        long start = SystemClock.elapsedRealtime();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final CountDownLatch finished = new CountDownLatch(THREADS);
+
+            for (int t = 0; t < THREADS; t++) {
+                final int threadIndex = t;
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            hammer(threadIndex, running, operations);
+                        } finally {
+                            finished.countDown();
+                        }
+                    }
+                }, "FlashLightStress-" + t).start();
+            }
+
+            SystemClock.sleep(ROUND_MILLIS);
+            running.set(false);
+            finished.await();
+
+            if (!settle(failuresInjected)) {
+                inconsistencies++;
+            }
+        }
+
+        long millis = SystemClock.elapsedRealtime() - start;
+        logger.log(INFO, name + ": " + operations.get() + " operations in " + millis + " ms ("
+                + (operations.get() * 1000 / Math.max(millis, 1)) + " ops/s), "
+                + simulator.getSwitchCount() + " switches, "
+                + inconsistencies + " inconsistent rounds, "
+                + simulator.getViolationCount() + " violations");
+
+        assertEquals("Protocol violations", 0, simulator.getViolationCount());
+        assertEquals("Inconsistent isFlashOn() results", 0, inconsistencies);
+
+        flashLight.closeCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        assertEquals("Devices left open", 0, simulator.getOpenDeviceCount());
+        awaitBufferReleased();
+    }
+
+    /**
+     * Calls the flash light at random. Switching a closed flash light is expected to fail.
+     */
+    private void hammer(int threadIndex, AtomicBoolean running, AtomicLong operations) {
+        Random random = new Random(threadIndex);
+        while (running.get()) {
+            int action = random.nextInt(10);
+            try {
+                if (action < 7) {
+                    flashLight.switchFlash();
+                } else if (action < 9) {
+                    flashLight.openCamera();
+                } else {
+                    flashLight.closeCamera();
+                }
+            } catch (IllegalStateException e) {
+                // switching while closed
+            }
+            operations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Opens the flash light, waits until it is ready and compares the reported flash state
+     * with the simulated torch.
+     *
+     * @return true if the flash light is consistent with the simulator
+     */
+    private boolean settle(boolean failuresInjected) throws Exception {
+        long deadline = SystemClock.elapsedRealtime() + SETTLE_TIMEOUT_MILLIS;
+        while (flashLight.getSessionState() != SimpleFlashLightImpl.SessionState.READY) {
+            flashLight.openCamera();
+            if (SystemClock.elapsedRealtime() > deadline) {
+                // with injected failures an open may fail repeatedly
+                return failuresInjected
+                        && flashLight.getSessionState() == SimpleFlashLightImpl.SessionState.CLOSED;
+            }
+            SystemClock.sleep(1);
+        }
+
+        // let queued switches run
+        SystemClock.sleep(20);
+        return flashLight.isFlashOn() == simulator.isTorchOn()
+                && simulator.getOpenDeviceCount() <= 1;
+    }
+
+    /**
+     * A closed flash light frees the buffer on its camera thread
+     */
+    private void awaitBufferReleased() {
+        long deadline = SystemClock.elapsedRealtime() + SETTLE_TIMEOUT_MILLIS;
+        while (simulator.isBufferHeld()) {
+            if (SystemClock.elapsedRealtime() > deadline) {
+                fail("Buffer kept after close");
+            }
+            SystemClock.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.hardware.SensorManager;
+import android.test.AndroidTestCase;
+
+/**
+ * Feeds sensor samples into the gesture classifiers and checks the toggles of a simulated camera.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class GestureToggleTest extends AndroidTestCase {
+
+    private static final long MILLIS = 1000000L;
+
+    /**
+     * timestamps start far from the toggles of other tests
+     */
+    private static long baseNanos = 1000000 * MILLIS;
+
+    private SimpleFlashLightImpl flashLight;
+    private GestureToggleDetector detector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        flashLight = new SimpleFlashLightImpl(new SimulatedCameraBackend(), "0");
+        assertTrue(flashLight.openCamera());
+        detector = new GestureToggleDetector(getContext(), flashLight);
+        baseNanos += 100000 * MILLIS;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        flashLight.closeCamera();
+        super.tearDown();
+    }
+
+    public void testShakeToggles() {
+        shake(0);
+        assertTrue("Shake did not switch on", flashLight.isFlashRequested());
+
+        // within the cooldown a shake is ignored
+        shake(500);
+        assertTrue("Shake within cooldown switched", flashLight.isFlashRequested());
+
+        shake(3000);
+        assertFalse("Shake did not switch off", flashLight.isFlashRequested());
+    }
+
+    public void testSlowMovementIgnored() {
+        // peaks spread over more than the shake window
+        for (int i = 0; i < 8; i++) {
+            acceleration(25f, i * 600);
+        }
+        assertFalse("Slow movement switched", flashLight.isFlashRequested());
+    }
+
+    public void testDoubleWaveToggles() {
+        wave(0);
+        assertFalse("Single wave switched", flashLight.isFlashRequested());
+        wave(400);
+        assertTrue("Double wave did not switch on", flashLight.isFlashRequested());
+    }
+
+    public void testCoveredSensorIgnored() {
+        // e.g. put into a pocket and taken out a while later
+        detector.onProximity(true, baseNanos);
+        detector.onProximity(false, baseNanos + 5000 * MILLIS);
+        detector.onProximity(true, baseNanos + 8000 * MILLIS);
+        assertFalse("Covered sensor switched", flashLight.isFlashRequested());
+    }
+
+    /**
+     * Feeds four peaks within 200 ms
+     */
+    private void shake(long atMillis) {
+        for (int i = 0; i < 4; i++) {
+            acceleration(25f, atMillis + i * 50);
+        }
+    }
+
+    private void acceleration(float magnitude, long atMillis) {
+        detector.onAcceleration(0, 0, magnitude, baseNanos + atMillis * MILLIS);
+        // back to rest between the peaks
+        detector.onAcceleration(0, 0, SensorManager.GRAVITY_EARTH, baseNanos + (atMillis + 10) * MILLIS);
+    }
+
+    private void wave(long atMillis) {
+        detector.onProximity(true, baseNanos + atMillis * MILLIS);
+        detector.onProximity(false, baseNanos + (atMillis + 150) * MILLIS);
+    }
+}
@@ -0,0 +1,409 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * AudioFlashController drives the flash light by the beats of an audio stream.
+ * <p/>
+ * The stream is the microphone or a WAV file. It is fed frame by frame into a BeatDetector
+ * on a dedicated audio thread. A beat turns the flash on, it is turned off again
+ * a fixed number of samples later, so the flash follows the stream time.
+ * The switches only post the pre-built requests to the camera thread, so the audio thread
+ * is not blocked by the camera.
+ * <p/>
+ * The microphone is read frame by frame. If the audio thread falls behind, e.g. after a stall,
+ * the recorder buffer holds a backlog of several frames. Those stale frames are still fed to
+ * keep the detector continuous, but their beats are not flashed, so the flash never lags
+ * the sound by more than one frame of buffering plus the switch latency.
+ * The switch latency is measured from the arrival of a beat's samples to the confirmation of the flash
+ * on the camera thread.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class AudioFlashController implements BeatDetector.OnBeatListener {
+
+    private static final Logger logger = Logger.getLogger(AudioFlashController.class.getSimpleName());
+
+    /**
+     * default time the flash is on for a beat
+     */
+    public static final int DEFAULT_FLASH_MILLIS = 60;
+
+    /**
+     * sample rate of the microphone, supported by all devices
+     */
+    private static final int MICROPHONE_SAMPLE_RATE = 44100;
+
+    /**
+     * the longest time to wait for the confirmation of a beat's flash
+     */
+    private static final long CONFIRM_TIMEOUT_MILLIS = 1000;
+
+    private final SimpleFlashLight flashLight;
+
+    private final int flashMillis;
+
+    /**
+     * detector of the running stream, only used on the audio thread
+     */
+    private volatile BeatDetector detector;
+
+    /**
+     * samples of a frame, only used on the audio thread
+     */
+    private short[] frame;
+
+    /**
+     * stream position to turn the flash off at or -1 if the flash is off
+     */
+    private long offPosition = -1;
+
+    /**
+     * flash-on time in samples of the running stream
+     */
+    private long flashSamples;
+
+    /**
+     * System.nanoTime() of the arrival of the processed samples
+     */
+    private long arrivalNanos;
+
+    /**
+     * true while the processed samples are older than one frame, only used on the audio thread
+     */
+    private boolean stale;
+
+    /**
+     * number of beats not flashed, because their samples were stale
+     */
+    private volatile long skippedBeats;
+
+    /**
+     * System.nanoTime() of the arrival of the beat waiting for its confirmation
+     */
+    private volatile long confirmArrivalNanos;
+
+    /**
+     * time from the arrival of a beat's samples to the confirmed flash
+     */
+    private final TorchMetrics.Histogram switchLatency = new TorchMetrics.Histogram();
+
+    /**
+     * Records the latency of a confirmed flash up to its arrival on the camera thread,
+     * so the delivery to the main thread is not part of it. Runs on the main thread.
+     */
+    private final SimpleFlashLight.OnFlashResultListener onFlashResult = new SimpleFlashLight.OnFlashResultListener() {
+        public void onFlashConfirmed(SimpleFlashLight flashLight, boolean on, long confirmedAtNanos) {
+            long arrival = confirmArrivalNanos;
+            if (arrival != 0) {
+                switchLatency.record(confirmedAtNanos - arrival);
+            }
+        }
+
+        public void onFlashFailed(SimpleFlashLight flashLight, boolean on, int reason) {
+            // a beat's flash superseded by its own switch off was too short to be seen
+        }
+    };
+
+    /**
+     * the running audio thread or null
+     */
+    private Thread audioThread;
+
+
+    /**
+     * Creates a controller with the default flash time
+     *
+     * @param flashLight the flash light to drive, usually a handle acquired from the FlashLightBroker.
+     *                   must not be null.
+     */
+    public AudioFlashController(SimpleFlashLight flashLight) {
+        this(flashLight, DEFAULT_FLASH_MILLIS);
+    }
+
+    /**
+     * Creates a controller
+     *
+     * @param flashLight  the flash light to drive. must not be null.
+     * @param flashMillis the time the flash is on for a beat
+     */
+    public AudioFlashController(SimpleFlashLight flashLight, int flashMillis) {
+        if (flashLight == null) {
+            throw new IllegalArgumentException("flashLight must not be null");
+        }
+        if (flashMillis <= 0) {
+            throw new IllegalArgumentException("flashMillis must be positive");
+        }
+        this.flashLight = flashLight;
+        this.flashMillis = flashMillis;
+    }
+
+    /**
+     * Starts driving the flash by the microphone. A running stream is stopped.
+     * Needs the RECORD_AUDIO permission, which the manifest declares only once a screen offers this.
+     */
+    public synchronized void startMicrophone() {
+        stop();
+        flashLight.openCamera();
+
+        audioThread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                recordMicrophone();
+            }
+        }, "FlashLightAudio");
+        audioThread.start();
+    }
+
+    /**
+     * Starts driving the flash by a WAV file in real time. A running stream is stopped.
+     *
+     * @param in the stream of a 16 bit PCM WAV file, closed when the file has been played
+     */
+    public synchronized void startWav(final InputStream in) {
+        stop();
+        flashLight.openCamera();
+
+        audioThread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                try {
+                    playWav(in, true);
+                } catch (IOException e) {
+                    logger.log(WARNING, "WAV file could not be played", e);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing left to read
+                    }
+                }
+            }
+        }, "FlashLightAudio");
+        audioThread.start();
+    }
+
+    /**
+     * Stops driving the flash. The flash is turned off by the audio thread.
+     */
+    public synchronized void stop() {
+        if (audioThread != null) {
+            audioThread.interrupt();
+            try {
+                audioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            audioThread = null;
+        }
+    }
+
+    /**
+     * Returns the running state
+     *
+     * @return true if an audio stream is driving the flash
+     */
+    public synchronized boolean isRunning() {
+        return audioThread != null && audioThread.isAlive();
+    }
+
+    /**
+     * Returns the time from the arrival of a beat's samples to the confirmed flash
+     */
+    public TorchMetrics.Histogram getSwitchLatency() {
+        return switchLatency;
+    }
+
+    /**
+     * Returns the number of beats not flashed, because the audio thread was behind
+     */
+    public long getSkippedBeats() {
+        return skippedBeats;
+    }
+
+    /**
+     * Returns the number of beats of the running or last stream
+     */
+    public long getBeatCount() {
+        BeatDetector current = detector;
+        return current == null ? 0 : current.getBeatCount();
+    }
+
+    /**
+     * Drives the flash by a WAV file on the calling thread, e.g. to test the pipeline headless.
+     *
+     * @param in    the stream of a 16 bit PCM WAV file, closed by the caller
+     * @param paced true to feed the samples in real time, false to feed them as fast as possible
+     * @throws IOException if the stream is no 16 bit PCM WAV file or could not be read
+     */
+    void playWav(InputStream in, boolean paced) throws IOException {
+        WavReader reader = new WavReader(in);
+        begin(reader.getSampleRate());
+        long start = System.nanoTime();
+        try {
+            int read;
+            while (!Thread.currentThread().isInterrupted()
+                    && (read = reader.read(frame, 0, frame.length)) > 0) {
+                if (paced) {
+                    // the samples are due when their stream time has passed
+                    long due = start + (detector.getPosition() + read) * 1000000000L / reader.getSampleRate();
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                feed(read);
+            }
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Records the microphone until interrupted. Runs on the audio thread.
+     */
+    private void recordMicrophone() {
+        int minBufferBytes = AudioRecord.getMinBufferSize(MICROPHONE_SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferBytes <= 0) {
+            logger.log(WARNING, "Microphone format not supported");
+            return;
+        }
+
+        // the voice recognition source skips the automatic gain control, which would flatten the onsets
+        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION, MICROPHONE_SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferBytes, BeatDetector.DEFAULT_FRAME_SIZE * 2 * 2));
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            logger.log(WARNING, "Microphone not available");
+            record.release();
+            return;
+        }
+
+        begin(MICROPHONE_SAMPLE_RATE);
+        try {
+            record.startRecording();
+            long start = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                int read = record.read(frame, 0, frame.length);
+                if (read < 0) {
+                    logger.log(WARNING, "Microphone read failed: " + read);
+                    break;
+                }
+                // the samples recorded by now, beyond the read ones, are the backlog of the buffer
+                long recorded = (System.nanoTime() - start) * MICROPHONE_SAMPLE_RATE / 1000000000L;
+                stale = recorded - (detector.getPosition() + read) > frame.length;
+                feed(read);
+            }
+        } finally {
+            end();
+            record.stop();
+            record.release();
+        }
+    }
+
+    /**
+     * Prepares the pipeline for a stream. Runs on the audio thread.
+     */
+    private void begin(int sampleRate) {
+        detector = new BeatDetector(sampleRate, this);
+        frame = new short[detector.getFrameSize()];
+        flashSamples = (long) sampleRate * flashMillis / 1000;
+        offPosition = -1;
+        stale = false;
+        skippedBeats = 0;
+        if (flashLight.isDeviceOpened()) {
+            flashLight.setTimedEdges(true);
+        }
+    }
+
+    /**
+     * Feeds the samples of the frame buffer. Runs on the audio thread.
+     */
+    private void feed(int length) {
+        arrivalNanos = System.nanoTime();
+        detector.process(frame, 0, length);
+        if (offPosition >= 0 && detector.getPosition() >= offPosition) {
+            offPosition = -1;
+            if (flashLight.isDeviceOpened()) {
+                flashLight.turnOffFlash();
+            }
+        }
+    }
+
+    /**
+     * Turns the flash off after a stream. Runs on the audio thread.
+     */
+    private void end() {
+        if (offPosition >= 0 && flashLight.isDeviceOpened()) {
+            flashLight.turnOffFlash();
+        }
+        offPosition = -1;
+        flashLight.setTimedEdges(false);
+        logger.log(INFO, "Stream ended after " + detector.getBeatCount() + " beats, " + skippedBeats
+                + " skipped, switch latency " + switchLatency);
+    }
+
+    public void onBeat(long samplePosition) {
+        if (!flashLight.isDeviceOpened()) {
+            return;
+        }
+        if (stale) {
+            skippedBeats++;
+            return;
+        }
+        // a beat within the flash-on time extends it
+        if (offPosition < 0) {
+            confirmArrivalNanos = arrivalNanos;
+            flashLight.setFlash(true, CONFIRM_TIMEOUT_MILLIS, onFlashResult);
+        }
+        offPosition = samplePosition + flashSamples;
+    }
+}
@@ -0,0 +1,88 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Backoff hands out bounded exponential delays for retrying a lost camera.
+ * <p/>
+ * The first retry waits the initial delay, every further retry doubles it
+ * up to the maximum delay. A success resets it.
+ * It is only used on the thread of the owning flash light.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class Backoff {
+
+    /**
+     * delay of the first retry
+     */
+    static final long INITIAL_DELAY_MILLIS = 250;
+
+    /**
+     * upper bound of the delays
+     */
+    static final long MAX_DELAY_MILLIS = 8000;
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private long nextDelayMillis;
+
+    Backoff() {
+        this(INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS);
+    }
+
+    Backoff(long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.nextDelayMillis = initialDelayMillis;
+    }
+
+    /**
+     * Returns the delay of the next retry and doubles the following one
+     *
+     * @return the delay in milliseconds
+     */
+    long nextDelayMillis() {
+        long delay = nextDelayMillis;
+        nextDelayMillis = Math.min(delay * 2, maxDelayMillis);
+        return delay;
+    }
+
+    /**
+     * Starts over with the initial delay
+     */
+    void reset() {
+        nextDelayMillis = initialDelayMillis;
+    }
+}
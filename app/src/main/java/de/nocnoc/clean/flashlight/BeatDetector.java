@@ -0,0 +1,250 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * BeatDetector finds onsets in a stream of 16 bit PCM samples.
+ * <p/>
+ * The samples are summed up to the energy of fixed-size frames. A frame is an onset
+ * if its energy rises over the previous frame and exceeds the mean of the last second
+ * by the sensitivity factor. The history is a ring buffer of frame energies,
+ * so processing does not allocate and takes constant time per sample.
+ * A refractory time suppresses the onsets within the decay of a beat.
+ * <p/>
+ * The detector is not thread-safe, it is fed by a single audio thread.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class BeatDetector {
+
+    /**
+     * Receives the detected beats. Called on the feeding thread.
+     */
+    public interface OnBeatListener {
+
+        /**
+         * Called when a beat has been detected
+         *
+         * @param samplePosition number of samples processed up to the end of the beat's frame
+         */
+        void onBeat(long samplePosition);
+    }
+
+    /**
+     * default frame size, about 12 ms at 44.1 kHz
+     */
+    public static final int DEFAULT_FRAME_SIZE = 512;
+
+    /**
+     * default factor the frame energy has to exceed the mean energy by
+     */
+    public static final float DEFAULT_SENSITIVITY = 1.6f;
+
+    /**
+     * length of the energy history in milliseconds
+     */
+    private static final int HISTORY_MILLIS = 1000;
+
+    /**
+     * shortest time between two beats in milliseconds
+     */
+    private static final int REFRACTORY_MILLIS = 120;
+
+    /**
+     * frames below this mean square level (-40 dBFS) are silence
+     */
+    private static final float SILENCE_ENERGY = 1e-4f;
+
+    private final OnBeatListener listener;
+    private final int sampleRate;
+    private final int frameSize;
+    private final long refractorySamples;
+
+    /**
+     * ring buffer of the last frame energies
+     */
+    private final float[] history;
+    private int historyIndex;
+    private int historyCount;
+    private double historySum;
+
+    private float sensitivity = DEFAULT_SENSITIVITY;
+
+    /**
+     * sum of squares of the running frame
+     */
+    private double frameEnergy;
+    private int frameFill;
+    private float previousEnergy;
+
+    /**
+     * number of processed samples
+     */
+    private long position;
+    private long lastBeatPosition;
+    private long beatCount;
+
+
+    /**
+     * Creates a detector with the default frame size
+     *
+     * @param sampleRate the sample rate in Hz
+     * @param listener   the listener of the detected beats. must not be null.
+     */
+    public BeatDetector(int sampleRate, OnBeatListener listener) {
+        this(sampleRate, DEFAULT_FRAME_SIZE, listener);
+    }
+
+    /**
+     * Creates a detector
+     *
+     * @param sampleRate the sample rate in Hz
+     * @param frameSize  the number of samples of a frame
+     * @param listener   the listener of the detected beats. must not be null.
+     */
+    public BeatDetector(int sampleRate, int frameSize, OnBeatListener listener) {
+        if (sampleRate <= 0 || frameSize <= 0) {
+            throw new IllegalArgumentException("sampleRate and frameSize must be positive");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        this.listener = listener;
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        this.refractorySamples = (long) sampleRate * REFRACTORY_MILLIS / 1000;
+        this.history = new float[Math.max(1, (int) ((long) sampleRate * HISTORY_MILLIS / 1000 / frameSize))];
+        reset();
+    }
+
+    /**
+     * Sets the factor the frame energy has to exceed the mean energy by
+     *
+     * @param sensitivity the factor, greater than 1
+     */
+    public void setSensitivity(float sensitivity) {
+        if (!(sensitivity > 1f)) {
+            throw new IllegalArgumentException("sensitivity must be greater than 1");
+        }
+        this.sensitivity = sensitivity;
+    }
+
+    /**
+     * Processes samples. Beats are reported to the listener before this method returns.
+     *
+     * @param pcm    the mono 16 bit samples
+     * @param offset the first sample
+     * @param length the number of samples, need not be a multiple of the frame size
+     */
+    public void process(short[] pcm, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            float sample = pcm[i] / 32768f;
+            frameEnergy += sample * sample;
+            position++;
+            if (++frameFill == frameSize) {
+                endFrame();
+            }
+        }
+    }
+
+    /**
+     * Forgets the history and the position
+     */
+    public void reset() {
+        historyIndex = 0;
+        historyCount = 0;
+        historySum = 0;
+        frameEnergy = 0;
+        frameFill = 0;
+        previousEnergy = 0;
+        position = 0;
+        lastBeatPosition = -refractorySamples;
+        beatCount = 0;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Returns the number of processed samples
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of detected beats since the last reset
+     */
+    public long getBeatCount() {
+        return beatCount;
+    }
+
+    /**
+     * Evaluates a completed frame and adds it to the history
+     */
+    private void endFrame() {
+        float energy = (float) (frameEnergy / frameSize);
+        frameEnergy = 0;
+        frameFill = 0;
+
+        float flux = energy - previousEnergy;
+        previousEnergy = energy;
+
+        // a quarter of the history is needed for a meaningful mean
+        if (historyCount >= history.length / 4 && historyCount > 0) {
+            float mean = (float) (historySum / historyCount);
+            if (energy > SILENCE_ENERGY && flux > 0 && energy > sensitivity * mean
+                    && position - lastBeatPosition >= refractorySamples) {
+                lastBeatPosition = position;
+                beatCount++;
+                listener.onBeat(position);
+            }
+        }
+
+        if (historyCount == history.length) {
+            historySum -= history[historyIndex];
+        } else {
+            historyCount++;
+        }
+        history[historyIndex] = energy;
+        // rounding errors must not drive the sum below zero
+        historySum = Math.max(0, historySum + energy);
+        historyIndex = (historyIndex + 1) % history.length;
+    }
+}
@@ -0,0 +1,557 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Camera2Backend runs the flash session on a camera2 device.
+ * <p/>
+ * The session repeats a preview request into a dummy texture of the smallest output size.
+ * The texture and its surface are created once and reused by every reopen of the camera,
+ * they are only freed by release().
+ * <p/>
+ * The requests use the LowPowerProfile of the camera, so the ISP skips the processing
+ * nobody needs for a torch. The first result of a session is checked against the profile.
+ * The torch-on and torch-off requests are built once per session,
+ * switching the flash only swaps them.
+ * <p/>
+ * The repeating request runs without a capture callback. A switch is confirmed by single
+ * captures of the new request until one shows the new flash state, so only the frames
+ * of a pending switch produce results.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class Camera2Backend implements CameraBackend {
+
+    private static final Logger logger = Logger.getLogger(Camera2Backend.class.getSimpleName());
+
+    /**
+     * camera manager
+     */
+    private final CameraManager cameraManager;
+
+    /**
+     * cached properties of the used camera
+     */
+    private final CameraCapabilities capabilities;
+
+    /**
+     * Some devices need the repeating request to be stopped before it can be replaced.
+     * disabled by default, for setRepeatingRequest replaces the running request anyway.
+     */
+    private volatile boolean restartRepeatingOnSwitch = false;
+
+    /**
+     * true to build the requests with the low-power profile, enabled by default
+     */
+    private volatile boolean lowPowerProfileEnabled = true;
+
+    /**
+     * true while the switches follow a timeline and need the timed frame rate of the profile
+     */
+    private volatile boolean timedEdges;
+
+    /**
+     * frame interval of timed switches in the last session
+     */
+    private volatile int timedFrameIntervalMicros = 1000000 / LowPowerProfile.DEFAULT_MIN_FPS;
+
+    /**
+     * number of profile settings the camera did not apply in the last verified session,
+     * -1 if no session was verified yet
+     */
+    private volatile int profileMismatchCount = -1;
+
+    /**
+     * Dummy Texture Buffer, reused across open/close cycles.
+     * only used on the camera thread.
+     */
+    private SurfaceTexture dummyTexture;
+
+    /**
+     * surface of the dummy texture
+     */
+    private Surface dummySurface;
+
+    /**
+     * the dummy surface as the output list of the session
+     */
+    private List<Surface> dummyTargets;
+
+    /**
+     * id of the camera the dummy texture is sized for
+     */
+    private String dummyCameraId;
+
+
+    /**
+     * Creates a camera2 backend
+     *
+     * @param cameraManager The camera manager of this device. must not be null.
+     * @param capabilities  The capabilities of the cameras. must not be null.
+     */
+    public Camera2Backend(CameraManager cameraManager, CameraCapabilities capabilities) {
+        if (cameraManager == null) {
+            throw new IllegalArgumentException("cameraManager must not be null");
+        }
+        if (capabilities == null) {
+            throw new IllegalArgumentException("capabilities must not be null");
+        }
+        this.cameraManager = cameraManager;
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Enables stopping the repeating request before switching the flash.
+     * Only needed for devices which fail to replace a running repeating request.
+     *
+     * @param restartRepeatingOnSwitch true to stop the old request before starting the new one
+     */
+    public void setRestartRepeatingOnSwitch(boolean restartRepeatingOnSwitch) {
+        this.restartRepeatingOnSwitch = restartRepeatingOnSwitch;
+    }
+
+    /**
+     * Enables the low-power request profile. Takes effect with the next session.
+     *
+     * @param lowPowerProfileEnabled false to use the plain preview template with auto exposure
+     */
+    public void setLowPowerProfileEnabled(boolean lowPowerProfileEnabled) {
+        this.lowPowerProfileEnabled = lowPowerProfileEnabled;
+    }
+
+    /**
+     * Selects the frame rate of the low-power profile. Takes effect with the next switch.
+     *
+     * @param timedEdges true for at least LowPowerProfile.TIMED_MIN_FPS, false for the lowest frame rate
+     */
+    public void setTimedEdges(boolean timedEdges) {
+        this.timedEdges = timedEdges;
+    }
+
+    /**
+     * Returns the longest time a timed switch waits for the next frame
+     *
+     * @return the frame interval of the last session in microseconds,
+     * of the lowest common frame rate without a session or profile
+     */
+    public int getTimedFrameIntervalMicros() {
+        return timedFrameIntervalMicros;
+    }
+
+    /**
+     * Returns how well the camera followed the low-power profile
+     *
+     * @return the number of profile settings the camera did not apply in the last verified session,
+     * -1 if no session was verified yet
+     */
+    public int getProfileMismatchCount() {
+        return profileMismatchCount;
+    }
+
+    public void openCamera(String cameraId, final DeviceCallback callback, Executor executor)
+            throws CameraAccessException {
+
+        Handler handler = HandlerScheduler.handlerOf(executor);
+
+        cameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
+
+            private Camera2Device device;
+
+            @Override
+            public void onOpened(CameraDevice camera) {
+                callback.onOpened(wrap(camera));
+            }
+
+            @Override
+            public void onClosed(CameraDevice camera) {
+                callback.onClosed(wrap(camera));
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                callback.onDisconnected(wrap(camera));
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                callback.onError(wrap(camera), error);
+            }
+
+            /**
+             * disconnect and error may be reported instead of the open callback
+             */
+            private Camera2Device wrap(CameraDevice camera) {
+                if (device == null) {
+                    device = new Camera2Device(camera);
+                }
+                return device;
+            }
+        }, handler);
+    }
+
+    /**
+     * camera2 availability callbacks by the callbacks of the flash light
+     */
+    private final Map<AvailabilityCallback, CameraManager.AvailabilityCallback> availabilityCallbacks =
+            new HashMap<>();
+
+    public void registerAvailabilityCallback(final AvailabilityCallback callback, Executor executor) {
+        Handler handler = HandlerScheduler.handlerOf(executor);
+        CameraManager.AvailabilityCallback availabilityCallback = new CameraManager.AvailabilityCallback() {
+            @Override
+            public void onCameraAvailable(String cameraId) {
+                callback.onCameraAvailable(cameraId);
+            }
+        };
+        synchronized (availabilityCallbacks) {
+            if (availabilityCallbacks.containsKey(callback)) {
+                return;
+            }
+            availabilityCallbacks.put(callback, availabilityCallback);
+        }
+        cameraManager.registerAvailabilityCallback(availabilityCallback, handler);
+    }
+
+    public void unregisterAvailabilityCallback(AvailabilityCallback callback) {
+        CameraManager.AvailabilityCallback availabilityCallback;
+        synchronized (availabilityCallbacks) {
+            availabilityCallback = availabilityCallbacks.remove(callback);
+        }
+        if (availabilityCallback != null) {
+            cameraManager.unregisterAvailabilityCallback(availabilityCallback);
+        }
+    }
+
+    /**
+     * Frees the dummy texture and its surface. Runs on the camera thread.
+     */
+    public void release() {
+        if (dummySurface != null) {
+            dummySurface.release();
+            dummySurface = null;
+        }
+        if (dummyTexture != null) {
+            dummyTexture.release();
+            dummyTexture = null;
+        }
+        dummyTargets = null;
+        dummyCameraId = null;
+    }
+
+    /**
+     * Returns the dummy output for a camera, it is only created if there is none yet
+     *
+     * @param cameraId the id of the camera, the buffer gets its smallest output size
+     * @return the dummy surface as the output list of a session
+     * @throws CameraAccessException if the camera has no SurfaceTexture output
+     */
+    private List<Surface> getDummyTargets(String cameraId) throws CameraAccessException {
+        if (dummyTargets != null && cameraId.equals(dummyCameraId)) {
+            return dummyTargets;
+        }
+        if (capabilities.getMinBufferWidth(cameraId) == 0) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_ERROR,
+                    "Camera " + cameraId + " does not support any SurfaceTexture output size");
+        }
+        release();
+
+        dummyTexture = new SurfaceTexture(1);
+        dummyTexture.setDefaultBufferSize(
+                capabilities.getMinBufferWidth(cameraId), capabilities.getMinBufferHeight(cameraId));
+        dummySurface = new Surface(dummyTexture);
+        dummyTargets = Collections.singletonList(dummySurface);
+        dummyCameraId = cameraId;
+        return dummyTargets;
+    }
+
+    /**
+     * An opened camera2 device
+     */
+    private class Camera2Device implements Device {
+
+        private final CameraDevice cameraDevice;
+
+        Camera2Device(CameraDevice cameraDevice) {
+            this.cameraDevice = cameraDevice;
+        }
+
+        public void createFlashSession(final SessionCallback callback, Executor executor)
+                throws CameraAccessException {
+
+            final Handler handler = HandlerScheduler.handlerOf(executor);
+
+            // Create new builder to manage all settings manually
+            final CaptureRequest.Builder requestBuilder =
+                    cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+
+            final LowPowerProfile sessionProfile;
+            if (lowPowerProfileEnabled) {
+                // resolved with the capabilities, so the open needs no characteristics
+                sessionProfile = capabilities.getLowPowerProfile(cameraDevice.getId());
+                sessionProfile.apply(requestBuilder);
+                timedFrameIntervalMicros = sessionProfile.getTimedFrameIntervalMicros();
+            } else {
+                sessionProfile = null;
+                timedFrameIntervalMicros = 1000000 / LowPowerProfile.DEFAULT_MIN_FPS;
+                // set auto exposure as prerequisite for the flash
+                requestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            }
+
+            // add the reused dummy buffer
+            List<Surface> targetList = getDummyTargets(cameraDevice.getId());
+            requestBuilder.addTarget(targetList.get(0));
+
+            // start session
+            cameraDevice.createCaptureSession(targetList, new CameraCaptureSession.StateCallback() {
+
+                @Override
+                public void onConfigured(CameraCaptureSession captureSession) {
+                    // build all requests once, switching only swaps them
+                    requestBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
+                    CaptureRequest torchOffRequest = requestBuilder.build();
+                    requestBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
+                    CaptureRequest torchOnRequest = requestBuilder.build();
+
+                    CaptureRequest timedOnRequest = torchOnRequest;
+                    CaptureRequest timedOffRequest = torchOffRequest;
+                    if (sessionProfile != null) {
+                        sessionProfile.applyFrameRate(requestBuilder, true);
+                        timedOnRequest = requestBuilder.build();
+                        requestBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
+                        timedOffRequest = requestBuilder.build();
+                    }
+
+                    callback.onConfigured(new Camera2Session(captureSession, torchOnRequest, torchOffRequest,
+                            timedOnRequest, timedOffRequest, sessionProfile, callback, handler));
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession captureSession) {
+                    callback.onConfigureFailed();
+                }
+            }, handler);
+        }
+
+        public void close() {
+            cameraDevice.close();
+        }
+    }
+
+    /**
+     * A running camera2 capture session with its pre-built requests
+     */
+    private class Camera2Session implements Session {
+
+        private final CameraCaptureSession captureSession;
+
+        /**
+         * pre-built repeating request with the flash in torch mode
+         */
+        private final CaptureRequest torchOnRequest;
+
+        /**
+         * pre-built repeating request with the flash turned off
+         */
+        private final CaptureRequest torchOffRequest;
+
+        /**
+         * pre-built requests with the timed frame rate of the profile
+         */
+        private final CaptureRequest timedOnRequest;
+        private final CaptureRequest timedOffRequest;
+
+        private final SessionCallback callback;
+
+        private final Handler handler;
+
+        /**
+         * profile to check the first result against, null once checked
+         */
+        private LowPowerProfile unverifiedProfile;
+
+        /**
+         * flash state of the last switch, only used on the camera thread
+         */
+        private boolean expectedOn;
+
+        /**
+         * request of the last switch, only used on the camera thread
+         */
+        private CaptureRequest expectedRequest;
+
+        /**
+         * true while the capture results are watched for the last switch
+         */
+        private boolean confirming;
+
+        /**
+         * Watches the single confirmation captures of the last switch. A capture which does not
+         * show the flash state yet is followed by the next one, so only the frames until
+         * the confirmation produce results.
+         */
+        private final CameraCaptureSession.CaptureCallback confirmationCallback =
+                new CameraCaptureSession.CaptureCallback() {
+
+                    @Override
+                    public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                                   TotalCaptureResult result) {
+                        if (unverifiedProfile != null) {
+                            verifyProfile(request, result);
+                        }
+                        // results of a previous switch may still be in flight
+                        if (!isConfirming(request)) {
+                            return;
+                        }
+                        if (isTorchOn(result) != expectedOn) {
+                            // the switch has not reached the flash unit yet
+                            captureConfirmation(request);
+                            return;
+                        }
+                        confirming = false;
+                        callback.onFlashConfirmed(Camera2Session.this, expectedOn);
+                    }
+
+                    @Override
+                    public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                                CaptureFailure failure) {
+                        if (isConfirming(request)) {
+                            captureConfirmation(request);
+                        }
+                    }
+                };
+
+        Camera2Session(CameraCaptureSession captureSession,
+                       CaptureRequest torchOnRequest, CaptureRequest torchOffRequest,
+                       CaptureRequest timedOnRequest, CaptureRequest timedOffRequest,
+                       LowPowerProfile profile, SessionCallback callback, Handler handler) {
+            this.captureSession = captureSession;
+            this.torchOnRequest = torchOnRequest;
+            this.torchOffRequest = torchOffRequest;
+            this.timedOnRequest = timedOnRequest;
+            this.timedOffRequest = timedOffRequest;
+            this.unverifiedProfile = profile;
+            this.callback = callback;
+            this.handler = handler;
+        }
+
+        /**
+         * Checks the applied settings against the low-power profile, once per session
+         */
+        private void verifyProfile(CaptureRequest request, CaptureResult result) {
+            boolean timed = request == timedOnRequest || request == timedOffRequest;
+            List<String> mismatches = unverifiedProfile.verify(result, timed);
+            unverifiedProfile = null;
+            profileMismatchCount = mismatches.size();
+            if (!mismatches.isEmpty()) {
+                logger.log(WARNING, "Low-power profile not applied: " + mismatches);
+            }
+        }
+
+        public void setFlash(boolean on) throws CameraAccessException {
+            if (restartRepeatingOnSwitch) {
+                captureSession.stopRepeating();
+            }
+            CaptureRequest request = timedEdges
+                    ? (on ? timedOnRequest : timedOffRequest)
+                    : (on ? torchOnRequest : torchOffRequest);
+            expectedOn = on;
+            expectedRequest = request;
+            confirming = true;
+            // the repeating request runs without results, a single capture confirms the switch
+            captureSession.setRepeatingRequest(request, null, null);
+            captureSession.capture(request, confirmationCallback, handler);
+        }
+
+        /**
+         * Returns true if the request belongs to the switch waiting for its confirmation
+         */
+        private boolean isConfirming(CaptureRequest request) {
+            return confirming && request == expectedRequest;
+        }
+
+        /**
+         * Captures the next frame to confirm the last switch
+         */
+        private void captureConfirmation(CaptureRequest request) {
+            try {
+                captureSession.capture(request, confirmationCallback, handler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                // the session is gone, the pending switch fails by its timeout or the close
+            }
+        }
+
+        public void close() {
+            captureSession.close();
+        }
+    }
+
+    /**
+     * Evaluates the flash state of a capture result.
+     * The flash mode is echoed from the request, the flash state reports the actual flash unit.
+     * So the flash state decides both ways where the device reports it, only devices without it
+     * fall back to the echoed flash mode.
+     *
+     * @return true if the torch was lit for this capture
+     */
+    private static boolean isTorchOn(CaptureResult result) {
+        Integer state = result.get(CaptureResult.FLASH_STATE);
+        if (state != null) {
+            return state == CaptureResult.FLASH_STATE_FIRED || state == CaptureResult.FLASH_STATE_PARTIAL;
+        }
+        Integer mode = result.get(CaptureResult.FLASH_MODE);
+        return mode != null && mode == CaptureResult.FLASH_MODE_TORCH;
+    }
+}
@@ -0,0 +1,172 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.hardware.camera2.CameraAccessException;
+
+import java.util.concurrent.Executor;
+
+/**
+ * CameraBackend abstracts the camera calls of the session based flash light.
+ * <p/>
+ * The flash light only needs to open a device, configure a flash session on it
+ * and switch the flash of that session. The camera2 implementation is Camera2Backend,
+ * tests run the flash light against an in-process simulator.
+ * <p/>
+ * All callbacks are delivered on the executor passed in, so the backends are free of the looper
+ * and the flash light runs against the simulator in a plain JVM.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public interface CameraBackend {
+
+    /**
+     * Opens a camera device asynchronously.
+     *
+     * @param cameraId the id of the camera to open
+     * @param callback receives the device callbacks
+     * @param executor the executor the callbacks are delivered on
+     * @throws CameraAccessException if the camera could not be accessed
+     */
+    void openCamera(String cameraId, DeviceCallback callback, Executor executor)
+            throws CameraAccessException;
+
+    /**
+     * Starts reporting cameras which become available, e.g. when another app released them.
+     *
+     * @param callback receives the availability callbacks
+     * @param executor the executor the callbacks are delivered on
+     */
+    void registerAvailabilityCallback(AvailabilityCallback callback, Executor executor);
+
+    /**
+     * Stops reporting the availability to the callback
+     *
+     * @param callback the callback to remove
+     */
+    void unregisterAvailabilityCallback(AvailabilityCallback callback);
+
+    /**
+     * Frees the buffers kept across open/close cycles.
+     * Must only be called while no device is open, the next open creates them again.
+     */
+    void release();
+
+    /**
+     * An opened camera device
+     */
+    interface Device {
+
+        /**
+         * Creates the flash session asynchronously.
+         * No request is running until the flash is switched the first time.
+         *
+         * @param callback receives the session callbacks
+         * @param executor the executor the callbacks are delivered on
+         * @throws CameraAccessException if the device could not be accessed
+         */
+        void createFlashSession(SessionCallback callback, Executor executor)
+                throws CameraAccessException;
+
+        /**
+         * Closes the device and its session. DeviceCallback.onClosed follows.
+         */
+        void close();
+    }
+
+    /**
+     * A configured flash session
+     */
+    interface Session {
+
+        /**
+         * Switches the flash of the running session.
+         * SessionCallback.onFlashConfirmed follows as soon as the camera confirms the new state.
+         *
+         * @param on true to turn the flash on
+         * @throws CameraAccessException if the session could not be accessed
+         */
+        void setFlash(boolean on) throws CameraAccessException;
+
+        /**
+         * Closes the session.
+         */
+        void close();
+    }
+
+    /**
+     * Callbacks of a camera device
+     */
+    interface DeviceCallback {
+
+        void onOpened(Device device);
+
+        void onClosed(Device device);
+
+        void onDisconnected(Device device);
+
+        void onError(Device device, int error);
+    }
+
+    /**
+     * Callbacks of the camera availability
+     */
+    interface AvailabilityCallback {
+
+        /**
+         * Called when a camera can be opened again
+         *
+         * @param cameraId the id of the camera
+         */
+        void onCameraAvailable(String cameraId);
+    }
+
+    /**
+     * Callbacks of a flash session
+     */
+    interface SessionCallback {
+
+        void onConfigured(Session session);
+
+        void onConfigureFailed();
+
+        /**
+         * Called when the camera confirmed the flash state of the last switch.
+         *
+         * @param session the switched session
+         * @param on      the confirmed flash state
+         */
+        void onFlashConfirmed(Session session, boolean on);
+    }
+}
@@ -0,0 +1,392 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * CameraCapabilities holds the camera properties the flash light depends on:
+ * the id of the back camera with a flash, its smallest output buffer size and its LowPowerProfile.
+ * Further flash units, e.g. front flashes and secondary rear modules, are listed as well.
+ * <p/>
+ * Enumerating the cameras needs several IPC calls. So the capabilities are resolved once,
+ * held in memory and persisted per build fingerprint. A cold start of the same
+ * firmware reads them from disk without touching the camera service.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class CameraCapabilities {
+
+    private static final Logger logger = Logger.getLogger(CameraCapabilities.class.getSimpleName());
+
+    private static final String PREFERENCES_NAME = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_FLASH_UNITS = "flash_units";
+
+    private static CameraCapabilities instance;
+
+    /**
+     * id of the back camera with a flash or null if there is none
+     */
+    private final String cameraId;
+
+    /**
+     * width of the smallest SurfaceTexture output size
+     */
+    private final int minBufferWidth;
+
+    /**
+     * height of the smallest SurfaceTexture output size
+     */
+    private final int minBufferHeight;
+
+    /**
+     * ids of all cameras with a flash, the back camera first
+     */
+    private final String[] flashCameraIds;
+
+    /**
+     * smallest SurfaceTexture output width of each camera in flashCameraIds,
+     * 0 if the camera has no SurfaceTexture output
+     */
+    private final int[] flashBufferWidths;
+
+    /**
+     * smallest SurfaceTexture output height of each camera in flashCameraIds
+     */
+    private final int[] flashBufferHeights;
+
+    /**
+     * low-power profile of each camera in flashCameraIds
+     */
+    private final LowPowerProfile[] flashProfiles;
+
+
+    private CameraCapabilities(String[] flashCameraIds, int[] flashBufferWidths, int[] flashBufferHeights,
+                               LowPowerProfile[] flashProfiles) {
+        this.flashCameraIds = flashCameraIds;
+        this.flashBufferWidths = flashBufferWidths;
+        this.flashBufferHeights = flashBufferHeights;
+        this.flashProfiles = flashProfiles;
+        if (flashCameraIds.length > 0) {
+            this.cameraId = flashCameraIds[0];
+            this.minBufferWidth = flashBufferWidths[0];
+            this.minBufferHeight = flashBufferHeights[0];
+        } else {
+            this.cameraId = null;
+            this.minBufferWidth = 0;
+            this.minBufferHeight = 0;
+        }
+    }
+
+    /**
+     * Returns the capabilities of this device.
+     * Uses the in-memory instance, then the on-disk cache and enumerates the cameras at last.
+     *
+     * @param context       any context, only used to access the on-disk cache
+     * @param cameraManager The camera manager of this device. must not be null.
+     * @return the capabilities or null if the cameras could not be accessed
+     */
+    public static synchronized CameraCapabilities getInstance(Context context, CameraManager cameraManager) {
+        if (instance != null) {
+            return instance;
+        }
+
+        SharedPreferences preferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        instance = load(preferences);
+        if (instance == null) {
+            try {
+                instance = resolve(cameraManager);
+                store(preferences, instance);
+            } catch (CameraAccessException e) {
+                logger.log(WARNING, "Error while finding suitable camera device", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the capabilities from the on-disk cache.
+     *
+     * @return the cached capabilities or null if there are none for this build
+     */
+    private static CameraCapabilities load(SharedPreferences preferences) {
+        if (!Build.FINGERPRINT.equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+        // caches written before the flash units were listed are resolved again
+        String units = preferences.getString(KEY_FLASH_UNITS, null);
+        if (units == null) {
+            return null;
+        }
+        if (units.isEmpty()) {
+            return new CameraCapabilities(new String[0], new int[0], new int[0], new LowPowerProfile[0]);
+        }
+
+        // id:width:height:profile of each unit, separated by commas
+        String[] unitList = units.split(",");
+        String[] ids = new String[unitList.length];
+        int[] widths = new int[unitList.length];
+        int[] heights = new int[unitList.length];
+        LowPowerProfile[] profiles = new LowPowerProfile[unitList.length];
+        try {
+            for (int i = 0; i < unitList.length; i++) {
+                String[] unit = unitList[i].split(":");
+                // caches written before the profiles were persisted are resolved again
+                if (unit.length < 4) {
+                    return null;
+                }
+                ids[i] = unit[0];
+                widths[i] = Integer.parseInt(unit[1]);
+                heights[i] = Integer.parseInt(unit[2]);
+                profiles[i] = LowPowerProfile.parse(unit[3]);
+            }
+        } catch (RuntimeException e) {
+            logger.log(WARNING, "Invalid capability cache", e);
+            return null;
+        }
+        return new CameraCapabilities(ids, widths, heights, profiles);
+    }
+
+    /**
+     * Writes the capabilities to the on-disk cache.
+     */
+    private static void store(SharedPreferences preferences, CameraCapabilities capabilities) {
+        preferences.edit()
+                .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .putString(KEY_FLASH_UNITS, capabilities.formatFlashUnits())
+                .apply();
+    }
+
+    /**
+     * Formats the flash units for the on-disk cache
+     *
+     * @return id:width:height:profile of each unit, separated by commas
+     */
+    private String formatFlashUnits() {
+        StringBuilder units = new StringBuilder();
+        for (int i = 0; i < flashCameraIds.length; i++) {
+            if (i > 0) {
+                units.append(',');
+            }
+            units.append(flashCameraIds[i]).append(':')
+                    .append(flashBufferWidths[i]).append(':')
+                    .append(flashBufferHeights[i]).append(':')
+                    .append(flashProfiles[i].format());
+        }
+        return units.toString();
+    }
+
+    /**
+     * Searches the camera devices for all cameras with a flashlight.
+     * The first back camera with a flash becomes the primary one.
+     * The low-power profiles are resolved from the same characteristics.
+     *
+     * @return the capabilities of the cameras with a flash
+     * @throws CameraAccessException
+     */
+    private static CameraCapabilities resolve(CameraManager cameraManager) throws CameraAccessException {
+        String[] ids = cameraManager.getCameraIdList();
+        List<String> flashIds = new ArrayList<>();
+        List<Size> flashSizes = new ArrayList<>();
+        List<LowPowerProfile> flashProfiles = new ArrayList<>();
+        boolean backCameraFound = false;
+        for (String id : ids) {
+            CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(id);
+            Boolean isFlashAvailable = cameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            boolean isBackCamera = CameraCharacteristics.LENS_FACING_BACK == cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
+
+            if (isFlashAvailable != null && isFlashAvailable) {
+                // the torch mode needs no buffer, only a capture session fails without one
+                Size minSize = getSmallestTextureBuffer(cameraCharacteristics);
+                if (minSize == null) {
+                    logger.log(WARNING, "Camera " + id + " does not support any SurfaceTexture output size");
+                    minSize = new Size(0, 0);
+                }
+                // the primary back camera leads the list
+                int index = flashIds.size();
+                if (isBackCamera && !backCameraFound) {
+                    backCameraFound = true;
+                    index = 0;
+                }
+                flashIds.add(index, id);
+                flashSizes.add(index, minSize);
+                flashProfiles.add(index, LowPowerProfile.of(cameraCharacteristics));
+            }
+        }
+
+        // without a back camera with a flash there is no primary flash
+        if (!backCameraFound) {
+            return new CameraCapabilities(new String[0], new int[0], new int[0], new LowPowerProfile[0]);
+        }
+
+        int[] widths = new int[flashIds.size()];
+        int[] heights = new int[flashIds.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = flashSizes.get(i).getWidth();
+            heights[i] = flashSizes.get(i).getHeight();
+        }
+        return new CameraCapabilities(flashIds.toArray(new String[flashIds.size()]), widths, heights,
+                flashProfiles.toArray(new LowPowerProfile[flashProfiles.size()]));
+    }
+
+    /**
+     * Evaluates the smallest texture buffer size, for we do not want to save it,
+     * but only need the flashlight.
+     *
+     * @return size of the smallest needed texture buffer size or null if there is no SurfaceTexture output
+     */
+    private static Size getSmallestTextureBuffer(CameraCharacteristics characteristics) {
+
+        // check which available output sizes are compatible with SurfaceTexture
+        StreamConfigurationMap configurationMap =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] outputSizes = configurationMap == null ? null : configurationMap.getOutputSizes(SurfaceTexture.class);
+
+        // assure that there is any compatibility
+        if (outputSizes == null || outputSizes.length == 0) {
+            return null;
+        }
+
+        // search for the smallest size to safe memory
+        Size chosen = outputSizes[0];
+        for (Size s : outputSizes) {
+            if (chosen.getWidth() >= s.getWidth() && chosen.getHeight() >= s.getHeight()) {
+                chosen = s;
+            }
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Returns the flash availability
+     *
+     * @return true if there is a back camera with a flash
+     */
+    public boolean isFlashAvailable() {
+        return cameraId != null;
+    }
+
+    /**
+     * Returns the id of the back camera with a flash
+     *
+     * @return the camera id or null if there is no camera with a flash
+     */
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    /**
+     * Returns the ids of all cameras with a flash, the primary back camera first
+     *
+     * @return the camera ids, empty if there is no back camera with a flash
+     */
+    public String[] getFlashCameraIds() {
+        return flashCameraIds.clone();
+    }
+
+    /**
+     * Returns the width of the smallest output buffer of a camera with a flash
+     *
+     * @param cameraId the id of a camera returned by getFlashCameraIds
+     * @return the buffer width in pixels, 0 if the camera has no SurfaceTexture output
+     */
+    public int getMinBufferWidth(String cameraId) {
+        return flashBufferWidths[indexOf(cameraId)];
+    }
+
+    /**
+     * Returns the height of the smallest output buffer of a camera with a flash
+     *
+     * @param cameraId the id of a camera returned by getFlashCameraIds
+     * @return the buffer height in pixels
+     */
+    public int getMinBufferHeight(String cameraId) {
+        return flashBufferHeights[indexOf(cameraId)];
+    }
+
+    /**
+     * Returns the low-power profile of a camera with a flash
+     *
+     * @param cameraId the id of a camera returned by getFlashCameraIds
+     * @return the profile resolved from the characteristics of the camera
+     */
+    LowPowerProfile getLowPowerProfile(String cameraId) {
+        return flashProfiles[indexOf(cameraId)];
+    }
+
+    private int indexOf(String cameraId) {
+        for (int i = 0; i < flashCameraIds.length; i++) {
+            if (flashCameraIds[i].equals(cameraId)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Camera " + cameraId + " has no flash");
+    }
+
+    /**
+     * Returns the width of the smallest output buffer of the camera
+     *
+     * @return the buffer width in pixels
+     */
+    public int getMinBufferWidth() {
+        return minBufferWidth;
+    }
+
+    /**
+     * Returns the height of the smallest output buffer of the camera
+     *
+     * @return the buffer height in pixels
+     */
+    public int getMinBufferHeight() {
+        return minBufferHeight;
+    }
+}
@@ -0,0 +1,171 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * FlashConfirmations keeps the pending confirmed switches of a flash light.
+ * <p/>
+ * It is only used on the thread of the owning flash light (camera or torch thread).
+ * Results are delivered on the main thread. Every pending switch is completed exactly once:
+ * confirmed, timed out, superseded by the opposite state or failed.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class FlashConfirmations {
+
+    private final SimpleFlashLight flashLight;
+
+    /**
+     * scheduler of the owning thread, used for the timeouts
+     */
+    private final TaskScheduler owner;
+
+    /**
+     * executor of the main thread for the results
+     */
+    private final Executor mainExecutor;
+
+    private final List<Pending> pending = new ArrayList<>();
+
+    FlashConfirmations(SimpleFlashLight flashLight, TaskScheduler owner, Executor mainExecutor) {
+        this.flashLight = flashLight;
+        this.owner = owner;
+        this.mainExecutor = mainExecutor;
+    }
+
+    /**
+     * Adds a switch waiting for its confirmation.
+     * Pending switches to the opposite state are superseded.
+     *
+     * @param on            the requested flash state
+     * @param timeoutMillis the time to wait for the confirmation
+     * @param listener      the listener of the result, may be null
+     */
+    void add(boolean on, long timeoutMillis, SimpleFlashLight.OnFlashResultListener listener) {
+        fail(!on, SimpleFlashLight.OnFlashResultListener.REASON_SUPERSEDED);
+
+        Pending switchRequest = new Pending(on, listener);
+        pending.add(switchRequest);
+        owner.schedule(switchRequest, timeoutMillis);
+    }
+
+    /**
+     * Completes all pending switches to a confirmed flash state
+     *
+     * @param on the confirmed flash state
+     */
+    void confirm(boolean on) {
+        confirm(on, System.nanoTime());
+    }
+
+    /**
+     * Completes all pending switches to a confirmed flash state
+     *
+     * @param on               the confirmed flash state
+     * @param confirmedAtNanos the System.nanoTime() the confirmation arrived on the owner thread
+     */
+    void confirm(boolean on, long confirmedAtNanos) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Pending switchRequest = pending.get(i);
+            if (switchRequest.on == on) {
+                pending.remove(i);
+                switchRequest.complete(true, 0, confirmedAtNanos);
+            }
+        }
+    }
+
+    /**
+     * Fails all pending switches to a flash state
+     *
+     * @param on     the flash state of the switches to fail
+     * @param reason one of the REASON constants
+     */
+    void fail(boolean on, int reason) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Pending switchRequest = pending.get(i);
+            if (switchRequest.on == on) {
+                pending.remove(i);
+                switchRequest.complete(false, reason, 0);
+            }
+        }
+    }
+
+    /**
+     * A switch waiting for its confirmation. Runs as its own timeout.
+     */
+    private final class Pending implements Runnable {
+
+        private final boolean on;
+        private final SimpleFlashLight.OnFlashResultListener listener;
+
+        Pending(boolean on, SimpleFlashLight.OnFlashResultListener listener) {
+            this.on = on;
+            this.listener = listener;
+        }
+
+        /**
+         * Timeout of the confirmation. Runs on the owning thread.
+         */
+        public void run() {
+            if (pending.remove(this)) {
+                complete(false, SimpleFlashLight.OnFlashResultListener.REASON_TIMEOUT, 0);
+            }
+        }
+
+        /**
+         * Delivers the result on the main thread
+         *
+         * @param confirmedAtNanos System.nanoTime() of the confirmation, taken on the owning thread
+         */
+        void complete(final boolean confirmed, final int reason, final long confirmedAtNanos) {
+            owner.cancel(this);
+            if (listener == null) {
+                return;
+            }
+            mainExecutor.execute(new Runnable() {
+                public void run() {
+                    if (confirmed) {
+                        listener.onFlashConfirmed(flashLight, on, confirmedAtNanos);
+                    } else {
+                        listener.onFlashFailed(flashLight, on, reason);
+                    }
+                }
+            });
+        }
+    }
+}
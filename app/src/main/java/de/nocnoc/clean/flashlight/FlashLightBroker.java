@@ -0,0 +1,589 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FlashLightBroker shares one flash light between several clients,
+ * e.g. the activity, the widget, the service and a pattern player.
+ * <p/>
+ * Every client acquires its own handle and releases it when done. The camera is opened
+ * on the first acquire and closed on the last release, so a new client neither reopens
+ * the camera nor closes it under another client.
+ * <p/>
+ * The flash state is arbitrated between the clients: turning the flash on claims it for
+ * the calling client, turning it off drops only that claim. The light is on while any
+ * client claims it, so a client cannot switch off the light of another one.
+ * Releasing a handle drops its claim as well.
+ * <p/>
+ * The handles of the user facing surfaces (activity, widget, notification, gestures) act for
+ * the user and share one persistent claim. It is kept after the surface is gone, until the user
+ * switches the light off or it is switched off outside of the app. While it is set, the camera
+ * is kept open and the listener of the user claim, i.e. the FlashLightService, is notified.
+ * <p/>
+ * The shared flash light is either the flash of the back camera or all flash units of the
+ * device, as chosen by the user. It is exchanged while nothing is claimed, the handles stay valid.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class FlashLightBroker {
+
+    /**
+     * Listener for the persistent claim of the user
+     */
+    public interface OnUserClaimChangedListener {
+
+        /**
+         * Called on the main thread when the user claim was set or dropped
+         *
+         * @param claimed true if the user claims the flash
+         */
+        void onUserClaimChanged(boolean claimed);
+    }
+
+    private static FlashLightBroker instance;
+
+    /**
+     * the shared flash light, exchanged under the lock of this
+     */
+    private volatile SimpleFlashLight flashLight;
+
+    /**
+     * the acquired handles, guarded by this
+     */
+    private final List<Handle> handles = new ArrayList<>();
+
+    /**
+     * the listeners added to the broker itself, guarded by this
+     */
+    private final List<SimpleFlashLight.OnStateChangedListener> listeners = new ArrayList<>();
+
+    /**
+     * true while the user claims the flash, guarded by this
+     */
+    private boolean userClaimed;
+
+    private volatile OnUserClaimChangedListener userClaimListener;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Notifies the listener of the user claim, reads the current claim when run
+     */
+    private final Runnable notifyUserClaimTask = new Runnable() {
+        public void run() {
+            OnUserClaimChangedListener listener = userClaimListener;
+            if (listener != null) {
+                listener.onUserClaimChanged(isUserClaimed());
+            }
+        }
+    };
+
+    /**
+     * Drops the claims when the flash was switched off outside of the broker,
+     * e.g. by the system or a lost camera. Runs on the main thread.
+     */
+    private final SimpleFlashLight.OnStateChangedListener onStateChanged =
+            new SimpleFlashLight.OnStateChangedListener() {
+                public void onStateChanged(SimpleFlashLight flashLight) {
+                    synchronized (FlashLightBroker.this) {
+                        if (!flashLight.isFlashRequested() && isClaimed()) {
+                            dropClaims();
+                            closeIfUnused();
+                        }
+                    }
+                }
+            };
+
+
+    FlashLightBroker(SimpleFlashLight flashLight) {
+        if (flashLight == null) {
+            throw new IllegalArgumentException("flashLight must not be null");
+        }
+        this.flashLight = flashLight;
+        flashLight.addOnStateChangedListener(onStateChanged);
+    }
+
+    /**
+     * Returns the broker of the best fitting flash light
+     *
+     * @param context any context, used to access the camera service and the capability cache
+     * @return the broker or null if no suitable camera could be found
+     */
+    public static synchronized FlashLightBroker getInstance(Context context) {
+        if (instance == null) {
+            SimpleFlashLight flashLight = SimpleFlashLightFactory.getInstance(context,
+                    SimpleFlashLightFactory.isAllFlashUnitsEnabled(context));
+            if (flashLight != null) {
+                instance = new FlashLightBroker(flashLight);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Acquires a handle to the shared flash light with a claim of its own,
+     * e.g. for a pattern player. The camera is opened if needed.
+     *
+     * @param client name of the client, used for debugging
+     * @return the handle, to be released by closeCamera()
+     */
+    public Handle acquire(String client) {
+        return acquire(client, false);
+    }
+
+    /**
+     * Acquires a handle acting for the user, sharing the persistent user claim.
+     * The camera is opened if needed.
+     *
+     * @param client name of the client, used for debugging
+     * @return the handle, to be released by closeCamera()
+     */
+    public Handle acquireForUser(String client) {
+        return acquire(client, true);
+    }
+
+    private synchronized Handle acquire(String client, boolean user) {
+        Handle handle = new Handle(client, user);
+        handles.add(handle);
+        flashLight.openCamera();
+        return handle;
+    }
+
+    /**
+     * Sets the listener of the user claim, e.g. to keep the process in the foreground
+     *
+     * @param listener the listener or null
+     */
+    public void setOnUserClaimChangedListener(OnUserClaimChangedListener listener) {
+        userClaimListener = listener;
+    }
+
+    /**
+     * Exchanges the shared flash light for the flash of the back camera or all flash units.
+     * Only done while no client claims the light, the handles and their listeners move along.
+     *
+     * @param context       any context, used to access the camera service and the capability cache
+     * @param allFlashUnits true to drive all cameras with a flash at once
+     * @return false if a client claims the light and it was kept
+     */
+    public synchronized boolean setAllFlashUnits(Context context, boolean allFlashUnits) {
+        if (isClaimed()) {
+            return false;
+        }
+        SimpleFlashLight next = SimpleFlashLightFactory.getInstance(context, allFlashUnits);
+        SimpleFlashLight previous = flashLight;
+        if (next == null || next == previous) {
+            return true;
+        }
+
+        previous.removeOnStateChangedListener(onStateChanged);
+        next.addOnStateChangedListener(onStateChanged);
+        for (SimpleFlashLight.OnStateChangedListener listener : listeners) {
+            previous.removeOnStateChangedListener(listener);
+            next.addOnStateChangedListener(listener);
+        }
+        for (Handle handle : handles) {
+            for (SimpleFlashLight.OnStateChangedListener listener : handle.listeners) {
+                previous.removeOnStateChangedListener(listener);
+                next.addOnStateChangedListener(listener);
+            }
+        }
+
+        if (previous.isDeviceOpened()) {
+            previous.closeCamera();
+        }
+        flashLight = next;
+        if (isTimed()) {
+            next.setTimedEdges(true);
+        }
+        if (!handles.isEmpty()) {
+            next.openCamera();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the persistent claim of the user
+     *
+     * @return true while the user claims the flash
+     */
+    public synchronized boolean isUserClaimed() {
+        return userClaimed;
+    }
+
+    /**
+     * Returns the shared flash light, e.g. to dump its metrics
+     */
+    SimpleFlashLight getFlashLight() {
+        return flashLight;
+    }
+
+    /**
+     * Returns the number of acquired handles
+     */
+    public synchronized int getClientCount() {
+        return handles.size();
+    }
+
+    /**
+     * Returns the arbitrated flash state
+     *
+     * @return true if the shared flash light is requested to be on
+     */
+    public boolean isFlashRequested() {
+        return flashLight.isFlashRequested();
+    }
+
+    /**
+     * Adds a listener to the shared flash light, independent of any handle
+     *
+     * @param listener the listener. must not be null.
+     */
+    public synchronized void addOnStateChangedListener(SimpleFlashLight.OnStateChangedListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+        flashLight.addOnStateChangedListener(listener);
+    }
+
+    /**
+     * Removes a listener added by addOnStateChangedListener
+     *
+     * @param listener the listener to remove
+     */
+    public synchronized void removeOnStateChangedListener(SimpleFlashLight.OnStateChangedListener listener) {
+        listeners.remove(listener);
+        flashLight.removeOnStateChangedListener(listener);
+    }
+
+    private synchronized void release(Handle handle) {
+        if (!handles.remove(handle)) {
+            return;
+        }
+        handle.removeListeners();
+
+        // the user claim outlives the handles of the user
+        if (handle.claiming) {
+            handle.claiming = false;
+            if (!isClaimed() && flashLight.isDeviceOpened()) {
+                flashLight.turnOffFlash();
+            }
+        }
+        if (handle.timed) {
+            setTimedEdges(handle, false);
+        }
+        closeIfUnused();
+    }
+
+    /**
+     * Closes the camera if no client uses it anymore
+     */
+    private void closeIfUnused() {
+        if (handles.isEmpty() && !userClaimed && flashLight.isDeviceOpened()) {
+            flashLight.closeCamera();
+        }
+    }
+
+    /**
+     * Returns true if any client claims the flash
+     */
+    private boolean isClaimed() {
+        if (userClaimed) {
+            return true;
+        }
+        for (int i = 0; i < handles.size(); i++) {
+            if (handles.get(i).claiming) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the claim of the handle is set
+     */
+    private boolean isClaimedBy(Handle handle) {
+        return handle.user ? userClaimed : handle.claiming;
+    }
+
+    private void setClaim(Handle handle, boolean claimed) {
+        if (!handle.user) {
+            handle.claiming = claimed;
+        } else if (userClaimed != claimed) {
+            userClaimed = claimed;
+            mainHandler.post(notifyUserClaimTask);
+        }
+    }
+
+    private void dropClaims() {
+        for (int i = 0; i < handles.size(); i++) {
+            handles.get(i).claiming = false;
+        }
+        if (userClaimed) {
+            userClaimed = false;
+            mainHandler.post(notifyUserClaimTask);
+        }
+    }
+
+    /**
+     * Runs the shared flash light at the timed frame rate while any client switches timed edges
+     */
+    private synchronized void setTimedEdges(Handle handle, boolean timedEdges) {
+        boolean wasTimed = isTimed();
+        handle.timed = timedEdges;
+        boolean timed = isTimed();
+        if (timed != wasTimed) {
+            flashLight.setTimedEdges(timed);
+        }
+    }
+
+    private boolean isTimed() {
+        for (int i = 0; i < handles.size(); i++) {
+            if (handles.get(i).timed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void turnOn(Handle handle) {
+        flashLight.turnOnFlash();
+        setClaim(handle, true);
+    }
+
+    private synchronized void turnOff(Handle handle) {
+        setClaim(handle, false);
+        // the light stays on for the other claiming clients
+        if (!isClaimed()) {
+            flashLight.turnOffFlash();
+        }
+    }
+
+    private synchronized void switchFlash(Handle handle) {
+        if (isClaimedBy(handle)) {
+            turnOff(handle);
+        } else {
+            turnOn(handle);
+        }
+    }
+
+    private synchronized void setFlash(final Handle handle, boolean on, long timeoutMillis,
+                                       final SimpleFlashLight.OnFlashResultListener listener) {
+        if (on) {
+            flashLight.setFlash(true, timeoutMillis, listener);
+            setClaim(handle, true);
+            return;
+        }
+
+        setClaim(handle, false);
+        if (!isClaimed()) {
+            flashLight.setFlash(false, timeoutMillis, listener);
+        } else if (listener != null) {
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    listener.onFlashFailed(handle, false, SimpleFlashLight.OnFlashResultListener.REASON_CLAIMED);
+                }
+            });
+        }
+    }
+
+    /**
+     * A client's handle to the shared flash light.
+     * closeCamera() releases the handle, it must not be used afterwards.
+     */
+    public final class Handle implements SimpleFlashLight {
+
+        private final String client;
+
+        /**
+         * true if the handle acts for the user and shares the user claim
+         */
+        private final boolean user;
+
+        /**
+         * true while this client claims the flash, guarded by the broker. unused by user handles.
+         */
+        private boolean claiming;
+
+        /**
+         * true while this client switches timed edges, guarded by the broker
+         */
+        private boolean timed;
+
+        /**
+         * listeners added through this handle, removed on release, guarded by the broker
+         */
+        private final List<OnStateChangedListener> listeners = new ArrayList<>();
+
+        private volatile boolean released;
+
+        private Handle(String client, boolean user) {
+            this.client = client;
+            this.user = user;
+        }
+
+        /**
+         * Returns the claim of this handle
+         *
+         * @return true if this client, or the user for a user handle, claims the flash
+         */
+        public boolean isClaimed() {
+            synchronized (FlashLightBroker.this) {
+                return isClaimedBy(this);
+            }
+        }
+
+        public boolean isInitialized() {
+            return !released && flashLight.isInitialized();
+        }
+
+        /**
+         * The camera was opened by the acquire. Opens it again, e.g. after it failed to open.
+         */
+        public boolean openCamera() {
+            checkNotReleased();
+            return flashLight.openCamera();
+        }
+
+        /**
+         * Releases this handle. The camera is closed if it was the last one.
+         */
+        public boolean closeCamera() {
+            released = true;
+            release(this);
+            return true;
+        }
+
+        public boolean isDeviceOpened() {
+            return !released && flashLight.isDeviceOpened();
+        }
+
+        /**
+         * Switches the claim of this client
+         */
+        public void switchFlash() {
+            checkNotReleased();
+            FlashLightBroker.this.switchFlash(this);
+        }
+
+        public void turnOnFlash() {
+            checkNotReleased();
+            turnOn(this);
+        }
+
+        /**
+         * Drops the claim of this client, the light goes off if no other client claims it
+         */
+        public void turnOffFlash() {
+            checkNotReleased();
+            turnOff(this);
+        }
+
+        /**
+         * Sets the claim of this client. A switch off fails with REASON_CLAIMED
+         * if another client keeps the light on.
+         */
+        public void setFlash(boolean on, long timeoutMillis, OnFlashResultListener listener) {
+            checkNotReleased();
+            FlashLightBroker.this.setFlash(this, on, timeoutMillis, listener);
+        }
+
+        public boolean isFlashOn() {
+            return flashLight.isFlashOn();
+        }
+
+        public boolean isFlashRequested() {
+            return flashLight.isFlashRequested();
+        }
+
+        public TorchMetrics getMetrics() {
+            return flashLight.getMetrics();
+        }
+
+        /**
+         * Sets the timed edges of this client, the flash light runs timed while any client does.
+         * The release already ended them, so ending them afterwards is ignored.
+         */
+        public void setTimedEdges(boolean timedEdges) {
+            if (!timedEdges && released) {
+                return;
+            }
+            checkNotReleased();
+            FlashLightBroker.this.setTimedEdges(this, timedEdges);
+        }
+
+        public int getFrameIntervalMicros() {
+            return flashLight.getFrameIntervalMicros();
+        }
+
+        public void addOnStateChangedListener(OnStateChangedListener listener) {
+            synchronized (FlashLightBroker.this) {
+                listeners.add(listener);
+                flashLight.addOnStateChangedListener(listener);
+            }
+        }
+
+        public void removeOnStateChangedListener(OnStateChangedListener listener) {
+            synchronized (FlashLightBroker.this) {
+                listeners.remove(listener);
+                flashLight.removeOnStateChangedListener(listener);
+            }
+        }
+
+        private void removeListeners() {
+            for (OnStateChangedListener listener : listeners) {
+                flashLight.removeOnStateChangedListener(listener);
+            }
+            listeners.clear();
+        }
+
+        private void checkNotReleased() {
+            if (released) {
+                throw new IllegalStateException("Error: Handle of " + client + " is released!");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Handle " + client + (user ? " (user)" : "") + (claiming ? " (claiming)" : "");
+        }
+    }
+}
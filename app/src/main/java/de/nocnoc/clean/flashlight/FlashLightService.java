@@ -0,0 +1,292 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+
+/**
+ * FlashLightService keeps the flash light on while the user claims it.
+ * <p/>
+ * It runs in the foreground with a notification to switch the light off,
+ * so the activity with its views and bitmaps can be destroyed and reclaimed
+ * while the process keeps its priority and the light stays on.
+ * No wake lock is held, the torch and the repeating request keep running while the CPU sleeps.
+ * <p/>
+ * The service is started and stopped by the persistent user claim of the FlashLightBroker,
+ * not by the flash state, so the pattern, optical and audio clients do not start it.
+ * <p/>
+ * While the light is on, a shake or wave gesture switches it off. The wake-up variants of the
+ * sensors are used, so a gesture is seen with the screen off while the CPU sleeps. Their events
+ * are batched with a long report latency, so the CPU is only woken when the batch is due.
+ * On devices without wake-up sensors the gestures are only seen while the CPU is awake.
+ * <p/>
+ * In the listening mode, chosen by the user, the service keeps running while the light is off
+ * and a gesture switches it on as well. It holds neither the camera nor a wake lock then,
+ * the camera is only acquired on a gesture.
+ * The volume keys are only handled by the activity, so they need the app on screen.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class FlashLightService extends Service {
+
+    /**
+     * keeps the light on, sent when the user claims the light
+     */
+    public static final String ACTION_KEEP_ON = "de.nocnoc.clean.flashlight.action.KEEP_ON";
+
+    /**
+     * switches the light off for the user, sent by the notification
+     */
+    public static final String ACTION_TURN_OFF = "de.nocnoc.clean.flashlight.action.SERVICE_TURN_OFF";
+
+    /**
+     * the user dropped the claim, sent when the light was switched off
+     */
+    static final String ACTION_RELEASE = "de.nocnoc.clean.flashlight.action.SERVICE_RELEASE";
+
+    /**
+     * the listening mode was changed
+     */
+    static final String ACTION_LISTEN = "de.nocnoc.clean.flashlight.action.SERVICE_LISTEN";
+
+    private static final String PREFERENCES_NAME = "flash_light_service";
+    private static final String KEY_LISTENING = "listening";
+    private static final String KEY_KEPT_ON = "kept_on";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * listener starting the service, registered once per process
+     */
+    private static ServiceStarter serviceStarter;
+
+    private FlashLightBroker broker;
+
+    /**
+     * the handle of the service, only acquired while the user claims the light
+     */
+    private SimpleFlashLight flashLight;
+
+    /**
+     * switches the flash by gestures while the service runs
+     */
+    private GestureToggleDetector gestureDetector;
+
+    private SharedPreferences preferences;
+
+    /**
+     * Switches the light for the user, the camera is acquired if the light was off
+     */
+    private final GestureToggleDetector.OnToggleListener onGesture = new GestureToggleDetector.OnToggleListener() {
+        public boolean onToggle() {
+            acquire();
+            flashLight.switchFlash();
+            return true;
+        }
+    };
+
+
+    /**
+     * Lets the service follow the user claim of the broker.
+     * Must be called on the main thread.
+     *
+     * @param context any context, only its application context is kept
+     * @param broker  the broker of the flash light to follow
+     */
+    static void follow(Context context, FlashLightBroker broker) {
+        if (serviceStarter == null) {
+            serviceStarter = new ServiceStarter(context.getApplicationContext());
+            broker.setOnUserClaimChangedListener(serviceStarter);
+        }
+    }
+
+    /**
+     * Returns the listening mode chosen by the user
+     *
+     * @param context any context, used to access the preferences
+     * @return true if gestures switch the light on in the background
+     */
+    public static boolean isListening(Context context) {
+        return getPreferences(context).getBoolean(KEY_LISTENING, false);
+    }
+
+    /**
+     * Stores the listening mode and starts or stops listening in the background
+     *
+     * @param context   any context, used to access the preferences and to start the service
+     * @param listening true to switch the light on by gestures in the background
+     */
+    public static void setListening(Context context, boolean listening) {
+        getPreferences(context).edit()
+                .putBoolean(KEY_LISTENING, listening)
+                .apply();
+        context.startService(new Intent(context, FlashLightService.class).setAction(ACTION_LISTEN));
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (broker == null) {
+            broker = FlashLightBroker.getInstance(this);
+            if (broker == null) {
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+            follow(this, broker);
+            preferences = getPreferences(this);
+            gestureDetector = new GestureToggleDetector(this, onGesture);
+        }
+
+        if (intent == null) {
+            // a restart after the process was killed claims the light again, if it was on
+            if (preferences.getBoolean(KEY_KEPT_ON, false)) {
+                acquire();
+                flashLight.turnOnFlash();
+            }
+        } else if (ACTION_KEEP_ON.equals(intent.getAction())) {
+            acquire();
+        } else if (ACTION_TURN_OFF.equals(intent.getAction()) && flashLight != null) {
+            flashLight.turnOffFlash();
+        }
+
+        boolean claimed = broker.isUserClaimed();
+        if (preferences.getBoolean(KEY_KEPT_ON, false) != claimed) {
+            preferences.edit().putBoolean(KEY_KEPT_ON, claimed).apply();
+        }
+        if (claimed) {
+            acquire();
+            startForeground(NOTIFICATION_ID, createNotification());
+        } else {
+            release();
+            stopForeground(true);
+        }
+
+        if (!claimed && !preferences.getBoolean(KEY_LISTENING, false)) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (!gestureDetector.isStarted()) {
+            gestureDetector.start(GestureToggleDetector.BACKGROUND_REPORT_LATENCY_US, true);
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (gestureDetector != null) {
+            gestureDetector.stop();
+        }
+        release();
+        stopForeground(true);
+        super.onDestroy();
+    }
+
+    /**
+     * Acquires the handle of the service, which opens the camera
+     */
+    private void acquire() {
+        if (flashLight == null) {
+            flashLight = broker.acquireForUser("service");
+        }
+    }
+
+    /**
+     * Releases the handle of the service, the camera is closed if nobody else uses it
+     */
+    private void release() {
+        if (flashLight != null) {
+            flashLight.closeCamera();
+            flashLight = null;
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Creates the notification with the action to switch the light off
+     */
+    @SuppressWarnings("deprecation")
+    private Notification createNotification() {
+        Intent turnOff = new Intent(this, FlashLightService.class).setAction(ACTION_TURN_OFF);
+        PendingIntent pendingTurnOff = PendingIntent.getService(this, 0, turnOff, 0);
+
+        Intent open = new Intent(this, MainActivity.class);
+        PendingIntent pendingOpen = PendingIntent.getActivity(this, 0, open, 0);
+
+        return new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_notification_flash)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.flash_service_running))
+                .setContentIntent(pendingOpen)
+                .setOngoing(true)
+                .setCategory(Notification.CATEGORY_SERVICE)
+                .addAction(R.drawable.ic_notification_flash, getString(R.string.flash_service_turn_off), pendingTurnOff)
+                .build();
+    }
+
+    /**
+     * Starts the service when the user claims the light and tells it when the claim is dropped,
+     * so it stops or keeps listening
+     */
+    private static final class ServiceStarter implements FlashLightBroker.OnUserClaimChangedListener {
+
+        private final Context context;
+        private boolean claimed;
+
+        ServiceStarter(Context context) {
+            this.context = context;
+        }
+
+        public void onUserClaimChanged(boolean nowClaimed) {
+            if (nowClaimed == claimed) {
+                return;
+            }
+            claimed = nowClaimed;
+            Intent intent = new Intent(context, FlashLightService.class);
+            context.startService(intent.setAction(nowClaimed ? ACTION_KEEP_ON : ACTION_RELEASE));
+        }
+    }
+}
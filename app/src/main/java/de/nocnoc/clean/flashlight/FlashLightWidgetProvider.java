@@ -0,0 +1,198 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.widget.RemoteViews;
+
+/**
+ * FlashLightWidgetProvider switches the flash from the home screen.
+ * <p/>
+ * The tap is delivered as a broadcast and drives the SimpleFlashLight directly,
+ * so neither the activity nor its view hierarchy is created. Like the activity, the receiver
+ * discovers the camera on a background thread and keeps the broadcast alive by goAsync()
+ * until the switch is handed to the camera.
+ * The widgets follow the pushed state changes of the flash light,
+ * so torch changes by the activity, the system or other apps are shown as well.
+ * <p/>
+ * The widget is a client of the FlashLightBroker. It switches the user claim by a short lived handle,
+ * the broker keeps the camera open while the user claims the light.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class FlashLightWidgetProvider extends AppWidgetProvider {
+
+    /**
+     * broadcast action sent by a tap on the widget
+     */
+    public static final String ACTION_TOGGLE = "de.nocnoc.clean.flashlight.action.TOGGLE";
+
+    /**
+     * listener updating the widgets, registered once per process
+     */
+    private static WidgetUpdater widgetUpdater;
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        FlashLightBroker broker = FlashLightBroker.getInstance(context);
+        if (broker != null) {
+            follow(context, broker);
+        }
+        boolean on = broker != null && broker.isFlashRequested();
+        appWidgetManager.updateAppWidget(appWidgetIds, createViews(context, on));
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ACTION_TOGGLE.equals(intent.getAction())) {
+            final long tappedAt = SystemClock.elapsedRealtime();
+            final Context appContext = context.getApplicationContext();
+            final Handler mainHandler = new Handler(Looper.getMainLooper());
+            final PendingResult result = goAsync();
+
+            // the camera discovery of a cold process stays off the main thread
+            new Thread(new Runnable() {
+                public void run() {
+                    Trace.beginSection("FlashLight.init");
+                    try {
+                        final FlashLightBroker broker = FlashLightBroker.getInstance(appContext);
+                        final SimpleFlashLight handle = broker != null ? broker.acquireForUser("widget") : null;
+                        mainHandler.post(new Runnable() {
+                            public void run() {
+                                try {
+                                    if (handle != null) {
+                                        toggle(appContext, broker, handle, tappedAt);
+                                    }
+                                } finally {
+                                    result.finish();
+                                }
+                            }
+                        });
+                    } finally {
+                        Trace.endSection();
+                    }
+                }
+            }, "FlashLightInit").start();
+        } else {
+            super.onReceive(context, intent);
+        }
+    }
+
+    /**
+     * Switches the user claim by the short lived handle of a tap. Runs on the main thread.
+     *
+     * @param context  the application context
+     * @param broker   the broker of the flash light
+     * @param handle   the handle acquired for the tap, closed afterwards
+     * @param tappedAt the elapsed realtime of the tap
+     */
+    private static void toggle(Context context, FlashLightBroker broker, SimpleFlashLight handle, long tappedAt) {
+        if (handle.openCamera()) {
+            follow(context, broker);
+            FlashLightService.follow(context, broker);
+            if (broker.isUserClaimed()) {
+                TimeToLight.cancel();
+            } else {
+                TimeToLight.start(TimeToLight.WIDGET, tappedAt);
+            }
+            // the widgets are updated by the state change of the switch
+            handle.switchFlash();
+        }
+        handle.closeCamera();
+    }
+
+    /**
+     * Lets the widgets follow the state changes of the flash light.
+     * Must be called on the main thread.
+     *
+     * @param context any context, only its application context is kept
+     * @param broker  the broker of the flash light to follow
+     */
+    static void follow(Context context, FlashLightBroker broker) {
+        if (widgetUpdater == null) {
+            widgetUpdater = new WidgetUpdater(context.getApplicationContext());
+            broker.addOnStateChangedListener(widgetUpdater);
+        }
+    }
+
+    /**
+     * Shows the flash state on all widgets
+     *
+     * @param context any context
+     * @param on      the flash state to show
+     */
+    private static void updateAll(Context context, boolean on) {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        ComponentName provider = new ComponentName(context, FlashLightWidgetProvider.class);
+        appWidgetManager.updateAppWidget(provider, createViews(context, on));
+    }
+
+    /**
+     * Creates the widget views with the toggle action
+     */
+    private static RemoteViews createViews(Context context, boolean on) {
+        Intent toggle = new Intent(context, FlashLightWidgetProvider.class).setAction(ACTION_TOGGLE);
+        PendingIntent pendingToggle = PendingIntent.getBroadcast(context, 0, toggle, 0);
+
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_flashlight);
+        views.setImageViewResource(R.id.widgetToggleLight, on ? R.mipmap.light_on : R.mipmap.light_off);
+        views.setOnClickPendingIntent(R.id.widgetToggleLight, pendingToggle);
+        return views;
+    }
+
+    /**
+     * Updates the widgets on state changes of the flash light
+     */
+    private static final class WidgetUpdater implements SimpleFlashLight.OnStateChangedListener {
+
+        private final Context context;
+
+        WidgetUpdater(Context context) {
+            this.context = context;
+        }
+
+        public void onStateChanged(SimpleFlashLight flashLight) {
+            updateAll(context, flashLight.isFlashRequested());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * FlashPattern is a compiled flash timeline.
+ * <p/>
+ * The timeline is held as a primitive array of durations in microseconds.
+ * Even indices are flash-on phases, odd indices are flash-off phases.
+ * Phases of the same state are merged while compiling, so every entry is one edge.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class FlashPattern {
+
+    /**
+     * default morse unit (dot length) in milliseconds
+     */
+    public static final int DEFAULT_MORSE_UNIT_MILLIS = 200;
+
+    /**
+     * morse codes of the letters A to Z
+     */
+    private static final String[] MORSE_LETTERS = {
+            ".-", "-...", "-.-.", "-..", ".", "..-.", "--.", "....", "..", ".---",
+            "-.-", ".-..", "--", "-.", "---", ".--.", "--.-", ".-.", "...", "-",
+            "..-", "...-", ".--", "-..-", "-.--", "--.."
+    };
+
+    /**
+     * morse codes of the digits 0 to 9
+     */
+    private static final String[] MORSE_DIGITS = {
+            "-----", ".----", "..---", "...--", "....-",
+            ".....", "-....", "--...", "---..", "----."
+    };
+
+    /**
+     * alternating on and off durations in microseconds, starting with on
+     */
+    private final int[] durationsMicros;
+
+
+    private FlashPattern(int[] durationsMicros) {
+        this.durationsMicros = durationsMicros;
+    }
+
+    /**
+     * Creates a pattern of user defined durations.
+     *
+     * @param onOffMillis alternating on and off durations in milliseconds, starting with on
+     * @return the compiled pattern
+     */
+    public static FlashPattern of(int... onOffMillis) {
+        Compiler compiler = new Compiler(onOffMillis.length);
+        for (int i = 0; i < onOffMillis.length; i++) {
+            compiler.add(i % 2 == 0, onOffMillis[i] * 1000L);
+        }
+        return compiler.compile();
+    }
+
+    /**
+     * Creates the SOS signal with the default morse unit.
+     *
+     * @return the compiled pattern
+     */
+    public static FlashPattern sos() {
+        return morse("SOS", DEFAULT_MORSE_UNIT_MILLIS);
+    }
+
+    /**
+     * Creates the morse code of a text. Letters, digits and spaces are encoded,
+     * all other characters are skipped. A word gap is appended, so the pattern can be repeated.
+     *
+     * @param text      the text to encode
+     * @param unitMillis the dot length in milliseconds
+     * @return the compiled pattern
+     */
+    public static FlashPattern morse(String text, int unitMillis) {
+        if (unitMillis <= 0) {
+            throw new IllegalArgumentException("unitMillis must be positive");
+        }
+
+        long unit = unitMillis * 1000L;
+        Compiler compiler = new Compiler(text.length() * 10);
+        String upperText = text.toUpperCase(Locale.US);
+
+        for (int i = 0; i < upperText.length(); i++) {
+            char c = upperText.charAt(i);
+            String code = null;
+            if (c >= 'A' && c <= 'Z') {
+                code = MORSE_LETTERS[c - 'A'];
+            } else if (c >= '0' && c <= '9') {
+                code = MORSE_DIGITS[c - '0'];
+            } else if (c == ' ') {
+                // word gap is 7 units, 3 of them are already added after the letter
+                compiler.add(false, 4 * unit);
+            }
+
+            if (code != null) {
+                for (int j = 0; j < code.length(); j++) {
+                    compiler.add(true, code.charAt(j) == '-' ? 3 * unit : unit);
+                    compiler.add(false, unit);
+                }
+                // letter gap is 3 units, 1 is already added after the symbol
+                compiler.add(false, 2 * unit);
+            }
+        }
+        // word gap before a repetition
+        compiler.add(false, 4 * unit);
+
+        return compiler.compile();
+    }
+
+    /**
+     * Creates the Manchester code of raw bytes, most significant bit first.
+     * A one is sent as on-off, a zero as off-on, so every bit has an edge in its middle
+     * and the receiver can recover the clock. An idle gap of two bits is appended,
+     * so the pattern can be repeated.
+     *
+     * @param data      the bytes to encode
+     * @param bitMicros the bit duration in microseconds, each half is one phase
+     * @return the compiled pattern
+     */
+    public static FlashPattern manchester(byte[] data, int bitMicros) {
+        if (bitMicros < 2) {
+            throw new IllegalArgumentException("bitMicros must be at least 2");
+        }
+
+        long half = bitMicros / 2;
+        Compiler compiler = new Compiler(data.length * 16 + 2);
+        for (byte b : data) {
+            for (int bit = 7; bit >= 0; bit--) {
+                boolean one = ((b >> bit) & 1) != 0;
+                compiler.add(one, half);
+                compiler.add(!one, half);
+            }
+        }
+        compiler.add(false, 2L * bitMicros);
+
+        return compiler.compile();
+    }
+
+    /**
+     * Returns the number of phases (edges) of the pattern
+     *
+     * @return the number of phases
+     */
+    public int size() {
+        return durationsMicros.length;
+    }
+
+    /**
+     * Returns the duration of a phase
+     *
+     * @param index the phase index
+     * @return the duration in microseconds
+     */
+    public int getDurationMicros(int index) {
+        return durationsMicros[index];
+    }
+
+    /**
+     * Returns the flash state of a phase
+     *
+     * @param index the phase index
+     * @return true if the flash is on in this phase
+     */
+    public boolean isOn(int index) {
+        return index % 2 == 0;
+    }
+
+    /**
+     * Returns the total duration of the pattern
+     *
+     * @return the duration in microseconds
+     */
+    public long getTotalMicros() {
+        long total = 0;
+        for (int duration : durationsMicros) {
+            total += duration;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "FlashPattern" + Arrays.toString(durationsMicros);
+    }
+
+    /**
+     * Merges phases of the same state into the primitive schedule
+     */
+    private static final class Compiler {
+
+        private int[] durations;
+        private int size;
+
+        Compiler(int capacity) {
+            durations = new int[Math.max(capacity, 2)];
+        }
+
+        void add(boolean on, long micros) {
+            if (micros <= 0) {
+                return;
+            }
+            boolean lastOn = size > 0 && (size - 1) % 2 == 0;
+            if (size > 0 && lastOn == on) {
+                micros += durations[size - 1];
+                size--;
+            }
+            if (micros > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Phase too long: " + micros + " us");
+            }
+            if (size == 0 && !on) {
+                // the schedule starts with an empty on phase
+                append(0);
+            }
+            append((int) micros);
+        }
+
+        private void append(int micros) {
+            if (size == durations.length) {
+                durations = Arrays.copyOf(durations, size * 2);
+            }
+            durations[size++] = micros;
+        }
+
+        FlashPattern compile() {
+            return new FlashPattern(Arrays.copyOf(durations, size));
+        }
+    }
+}
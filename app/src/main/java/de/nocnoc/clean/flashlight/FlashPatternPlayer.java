@@ -0,0 +1,422 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.Process;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * FlashPatternPlayer plays a FlashPattern on a dedicated timing thread.
+ * <p/>
+ * Every edge is scheduled against an absolute deadline, so delays do not add up.
+ * The thread parks until shortly before the deadline and spins the rest.
+ * The edges use the pre-built requests of the flash light, so no request is built while playing.
+ * <p/>
+ * The lateness of every edge is the time from its deadline to its confirmation, taken on the
+ * thread of the flash light, so the delay of the main thread is not included. The mean lateness
+ * is a constant offset of all edges, the jitter is the spread of the lateness around it.
+ * An edge shorter than the
+ * latency of the camera thread may be coalesced with the next one, because a pending switch is
+ * replaced by a later request. Such an edge never reaches the light, it is counted as dropped.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class FlashPatternPlayer {
+
+    private static final Logger logger = Logger.getLogger(FlashPatternPlayer.class.getSimpleName());
+
+    /**
+     * the last part before a deadline is spun instead of parked
+     */
+    private static final long SPIN_NANOS = 1000000;
+
+    /**
+     * the longest time to wait for the confirmation of an edge
+     */
+    private static final long EDGE_CONFIRM_TIMEOUT_MILLIS = 1000;
+
+    private final SimpleFlashLight flashLight;
+
+    /**
+     * the running timing thread or null
+     */
+    private Thread timingThread;
+
+    /**
+     * number of confirmed edges
+     */
+    private volatile long edgeCount;
+
+    /**
+     * number of edges which did not reach the light, only written on the main thread
+     */
+    private volatile long droppedEdgeCount;
+
+    /**
+     * number of issued edges waiting for their result, guarded by itself
+     */
+    private final int[] pendingEdges = new int[1];
+
+    /**
+     * sum of the lateness of all confirmed edges, only written on the main thread
+     */
+    private volatile long latenessSumNanos;
+
+    /**
+     * sum of the squared lateness of all confirmed edges in square microseconds, only written on the main thread
+     */
+    private volatile double latenessSquareSumMicros;
+
+    /**
+     * smallest and largest lateness of the confirmed edges, only written on the main thread
+     */
+    private volatile long minLatenessNanos;
+    private volatile long maxLatenessNanos;
+
+    /**
+     * scheduled time from the first to the last played edge
+     */
+    private volatile long playedNanos;
+
+
+    /**
+     * Creates a player for a flash light
+     *
+     * @param flashLight the flash light to play on, usually a handle acquired from the FlashLightBroker.
+     *                   must not be null.
+     */
+    public FlashPatternPlayer(SimpleFlashLight flashLight) {
+        if (flashLight == null) {
+            throw new IllegalArgumentException("flashLight must not be null");
+        }
+        this.flashLight = flashLight;
+    }
+
+    /**
+     * Starts playing a pattern. A running pattern is stopped.
+     * The camera device is opened if needed.
+     *
+     * @param pattern the pattern to play
+     * @param repeat  true to repeat the pattern until stopped
+     */
+    public synchronized void play(final FlashPattern pattern, final boolean repeat) {
+        Thread previous = timingThread;
+        stop();
+        if (previous != null) {
+            // the previous thread turns the flash off while finishing
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        edgeCount = 0;
+        droppedEdgeCount = 0;
+        latenessSumNanos = 0;
+        latenessSquareSumMicros = 0;
+        minLatenessNanos = 0;
+        maxLatenessNanos = 0;
+        playedNanos = 0;
+
+        flashLight.openCamera();
+
+        timingThread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                try {
+                    flashLight.setTimedEdges(true);
+                    playTimeline(pattern, repeat);
+                } catch (IllegalStateException e) {
+                    logger.log(WARNING, "Flash light was closed while playing", e);
+                } finally {
+                    if (flashLight.isDeviceOpened()) {
+                        flashLight.turnOffFlash();
+                    }
+                    flashLight.setTimedEdges(false);
+                    logger.log(INFO, "Played pattern, " + edgeCount + " edges confirmed so far, mean lateness "
+                            + getMeanLatenessMicros() + " us, jitter " + getJitterMicros()
+                            + " us, lateness spread " + getLatenessSpreadMicros() + " us");
+                }
+            }
+        }, "FlashLightPattern");
+        timingThread.start();
+    }
+
+    /**
+     * Stops playing. The flash is turned off by the timing thread.
+     */
+    public synchronized void stop() {
+        if (timingThread != null) {
+            timingThread.interrupt();
+            timingThread = null;
+        }
+    }
+
+    /**
+     * Waits until the playing pattern has finished and its edges were confirmed.
+     * Must not be called on the main thread, the confirmations are delivered there.
+     *
+     * @param timeoutMillis the longest time to wait, 0 to wait forever
+     * @return true if no pattern is playing anymore and no edge waits for its result
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public boolean awaitFinished(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Thread thread;
+        synchronized (this) {
+            thread = timingThread;
+        }
+        if (thread != null) {
+            thread.join(timeoutMillis);
+        }
+        synchronized (pendingEdges) {
+            while (pendingEdges[0] > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeoutMillis == 0) {
+                    pendingEdges.wait();
+                } else if (remaining > 0) {
+                    pendingEdges.wait(remaining);
+                } else {
+                    return false;
+                }
+            }
+        }
+        return !isPlaying();
+    }
+
+    /**
+     * Returns the playing state
+     *
+     * @return true if a pattern is playing
+     */
+    public synchronized boolean isPlaying() {
+        return timingThread != null && timingThread.isAlive();
+    }
+
+    /**
+     * Returns the number of edges confirmed since the last start
+     *
+     * @return the number of edges
+     */
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Returns the number of edges since the last start which did not reach the light,
+     * e.g. because they were coalesced with the next edge or the switch failed
+     *
+     * @return the number of dropped edges
+     */
+    public long getDroppedEdgeCount() {
+        return droppedEdgeCount;
+    }
+
+    /**
+     * Returns the mean time from the deadline of an edge to its confirmation since the last start
+     *
+     * @return the mean lateness in microseconds
+     */
+    public long getMeanLatenessMicros() {
+        long count = edgeCount;
+        return count == 0 ? 0 : latenessSumNanos / count / 1000;
+    }
+
+    /**
+     * Returns the largest time from the deadline of an edge to its confirmation since the last start
+     *
+     * @return the largest lateness in microseconds
+     */
+    public long getMaxLatenessMicros() {
+        return maxLatenessNanos / 1000;
+    }
+
+    /**
+     * Returns the jitter of the edges confirmed since the last start,
+     * the standard deviation of their lateness
+     *
+     * @return the jitter in microseconds
+     */
+    public long getJitterMicros() {
+        long count = edgeCount;
+        if (count == 0) {
+            return 0;
+        }
+        double meanMicros = latenessSumNanos / 1000.0 / count;
+        double variance = latenessSquareSumMicros / count - meanMicros * meanMicros;
+        return variance > 0 ? Math.round(Math.sqrt(variance)) : 0;
+    }
+
+    /**
+     * Returns the difference of the largest and the smallest lateness of the edges confirmed
+     * since the last start, the largest shift of one edge against another
+     *
+     * @return the spread in microseconds
+     */
+    public long getLatenessSpreadMicros() {
+        return (maxLatenessNanos - minLatenessNanos) / 1000;
+    }
+
+    /**
+     * Returns the scheduled time from the first to the last edge played since the last start
+     *
+     * @return the played time in microseconds
+     */
+    public long getPlayedMicros() {
+        return playedNanos / 1000;
+    }
+
+    /**
+     * Plays the timeline against absolute deadlines. Runs on the timing thread.
+     */
+    private void playTimeline(FlashPattern pattern, boolean repeat) {
+        long start = System.nanoTime();
+        long deadline = start;
+        boolean lastOn = false;
+
+        do {
+            for (int i = 0; i < pattern.size(); i++) {
+                int durationMicros = pattern.getDurationMicros(i);
+                if (durationMicros == 0) {
+                    continue;
+                }
+                if (!waitUntil(deadline)) {
+                    return;
+                }
+
+                lastOn = pattern.isOn(i);
+                issueEdge(lastOn, deadline);
+                playedNanos = deadline - start;
+
+                deadline += durationMicros * 1000L;
+            }
+        } while (repeat && !Thread.currentThread().isInterrupted());
+
+        // a pattern ending with a flash phase is closed by the final edge
+        if (lastOn && waitUntil(deadline)) {
+            issueEdge(false, deadline);
+            playedNanos = deadline - start;
+        }
+    }
+
+    /**
+     * Waits for a deadline. Parks until shortly before and spins the rest.
+     *
+     * @param deadline the deadline in System.nanoTime() units
+     * @return false if the thread was interrupted
+     */
+    private static boolean waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        while (remaining > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        while (deadline - System.nanoTime() > 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Switches the flash for an edge, its lateness is recorded on the confirmation. Runs on the timing thread.
+     */
+    private void issueEdge(boolean on, long deadline) {
+        synchronized (pendingEdges) {
+            pendingEdges[0]++;
+        }
+        try {
+            flashLight.setFlash(on, EDGE_CONFIRM_TIMEOUT_MILLIS, new EdgeResult(deadline));
+        } catch (IllegalStateException e) {
+            finishEdge();
+            throw e;
+        }
+    }
+
+    /**
+     * Counts a finished edge and wakes up the waiting threads
+     */
+    private void finishEdge() {
+        synchronized (pendingEdges) {
+            pendingEdges[0]--;
+            pendingEdges.notifyAll();
+        }
+    }
+
+    /**
+     * The result of an edge. Runs on the main thread, the lateness is taken from the confirmation time.
+     */
+    private final class EdgeResult implements SimpleFlashLight.OnFlashResultListener {
+
+        /**
+         * the deadline of the edge in System.nanoTime() units
+         */
+        private final long deadline;
+
+        EdgeResult(long deadline) {
+            this.deadline = deadline;
+        }
+
+        public void onFlashConfirmed(SimpleFlashLight flashLight, boolean on, long confirmedAtNanos) {
+            long latenessNanos = confirmedAtNanos - deadline;
+            double latenessMicros = latenessNanos / 1000.0;
+            if (edgeCount == 0 || latenessNanos < minLatenessNanos) {
+                minLatenessNanos = latenessNanos;
+            }
+            if (edgeCount == 0 || latenessNanos > maxLatenessNanos) {
+                maxLatenessNanos = latenessNanos;
+            }
+            latenessSumNanos += latenessNanos;
+            latenessSquareSumMicros += latenessMicros * latenessMicros;
+            edgeCount++;
+            finishEdge();
+        }
+
+        public void onFlashFailed(SimpleFlashLight flashLight, boolean on, int reason) {
+            droppedEdgeCount++;
+            finishEdge();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * GestureToggleDetector switches the flash light by a shake or by waving twice over the proximity sensor.
+ * <p/>
+ * The sensors are registered with a maximum report latency, so the events are batched in
+ * the sensor hub and the application processor is woken up rarely. The classifiers use the
+ * timestamps of the events, so batching delays a toggle but does not change what is detected.
+ * <p/>
+ * The default sensors are no wake-up sensors: while the CPU sleeps, their events are dropped
+ * when the FIFO of the sensor hub is full. So in the background the wake-up variants are used,
+ * which wake the CPU when the report latency expires or the FIFO fills up.
+ * Devices without them fall back to the default sensors, which only see gestures while the CPU is awake.
+ * Both classifiers are streaming state machines over a few primitives and do not allocate.
+ * <p/>
+ * A shake is a number of acceleration peaks within a short window, a peak ends when
+ * the acceleration falls back to half of the threshold.
+ * A wave is a near-far transition of the proximity sensor, two waves within a window toggle,
+ * so covering the sensor, e.g. in a pocket, does not.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class GestureToggleDetector implements SensorEventListener {
+
+    private static final Logger logger = Logger.getLogger(GestureToggleDetector.class.getSimpleName());
+
+    /**
+     * Listener for the detected gestures
+     */
+    public interface OnToggleListener {
+
+        /**
+         * Called on the main thread when a gesture asks to toggle the flash
+         *
+         * @return true if the flash was toggled, false if the gesture was ignored
+         */
+        boolean onToggle();
+    }
+
+    /**
+     * report latency in the foreground, short enough to feel immediate
+     */
+    public static final int FOREGROUND_REPORT_LATENCY_US = 50000;
+
+    /**
+     * report latency in the background, the sensor hub batches the events
+     */
+    public static final int BACKGROUND_REPORT_LATENCY_US = 400000;
+
+    /**
+     * deviation from gravity of a shake peak in m/s^2
+     */
+    private static final float SHAKE_THRESHOLD = 11f;
+
+    /**
+     * number of peaks of a shake
+     */
+    private static final int SHAKE_PEAKS = 4;
+
+    private static final long SHAKE_WINDOW_NANOS = 1000000000L;
+
+    /**
+     * number of waves over the proximity sensor of a toggle
+     */
+    private static final int WAVES = 2;
+
+    private static final long WAVE_WINDOW_NANOS = 1500000000L;
+
+    /**
+     * gestures after a toggle are ignored for this time
+     */
+    private static final long COOLDOWN_NANOS = 1000000000L;
+
+    private final SensorManager sensorManager;
+    private final OnToggleListener listener;
+
+    /**
+     * true while the acceleration is in a peak
+     */
+    private boolean inPeak;
+    private int peakCount;
+    private long firstPeakNanos;
+
+    private boolean near;
+    private int waveCount;
+    private long firstWaveNanos;
+
+    /**
+     * time of the last toggle of all detectors, so a gesture seen by the activity
+     * and the service toggles only once. only used on the main thread.
+     */
+    private static long lastToggleNanos;
+
+    private boolean started;
+
+
+    /**
+     * Creates a detector
+     *
+     * @param context    any context, used to access the sensor service
+     * @param flashLight the flash light to switch, usually a handle acquired from the FlashLightBroker.
+     *                   must not be null.
+     */
+    public GestureToggleDetector(Context context, final SimpleFlashLight flashLight) {
+        this(context, new OnToggleListener() {
+            public boolean onToggle() {
+                if (!flashLight.isDeviceOpened()) {
+                    return false;
+                }
+                flashLight.switchFlash();
+                return true;
+            }
+        });
+        if (flashLight == null) {
+            throw new IllegalArgumentException("flashLight must not be null");
+        }
+    }
+
+    /**
+     * Creates a detector calling a listener, e.g. to acquire the flash light only on a gesture
+     *
+     * @param context  any context, used to access the sensor service
+     * @param listener the listener of the gestures. must not be null.
+     */
+    public GestureToggleDetector(Context context, OnToggleListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this.listener = listener;
+    }
+
+    /**
+     * Starts listening with the default sensors, e.g. in the foreground while the screen is on.
+     * Must be called on the main thread, the events are delivered there.
+     *
+     * @param maxReportLatencyUs the longest time the events may be batched
+     */
+    public void start(int maxReportLatencyUs) {
+        start(maxReportLatencyUs, false);
+    }
+
+    /**
+     * Starts listening. Must be called on the main thread, the events are delivered there.
+     *
+     * @param maxReportLatencyUs the longest time the events may be batched
+     * @param wakeUp             true to use the wake-up sensors, so gestures are seen while the CPU sleeps
+     */
+    public void start(int maxReportLatencyUs, boolean wakeUp) {
+        if (started) {
+            stop();
+        }
+        resetClassifiers();
+        Sensor accelerometer = getSensor(Sensor.TYPE_ACCELEROMETER, wakeUp);
+        Sensor proximity = getSensor(Sensor.TYPE_PROXIMITY, wakeUp);
+        if (accelerometer != null) {
+            sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME, maxReportLatencyUs);
+        }
+        if (proximity != null) {
+            sensorManager.registerListener(this, proximity, SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs);
+        }
+        started = true;
+    }
+
+    /**
+     * Returns the sensor of a type, the wake-up variant if requested and available
+     */
+    private Sensor getSensor(int type, boolean wakeUp) {
+        if (wakeUp) {
+            Sensor sensor = sensorManager.getDefaultSensor(type, true);
+            if (sensor != null) {
+                return sensor;
+            }
+            logger.log(WARNING, "No wake-up sensor of type " + type
+                    + ", gestures of this sensor are only seen while the CPU is awake");
+        }
+        return sensorManager.getDefaultSensor(type);
+    }
+
+    /**
+     * Stops listening
+     */
+    public void stop() {
+        sensorManager.unregisterListener(this);
+        started = false;
+    }
+
+    /**
+     * Returns the listening state
+     *
+     * @return true if the detector was started and not stopped
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    public void onSensorChanged(SensorEvent event) {
+        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+            onAcceleration(event.values[0], event.values[1], event.values[2], event.timestamp);
+        } else if (event.sensor.getType() == Sensor.TYPE_PROXIMITY) {
+            onProximity(event.values[0] < event.sensor.getMaximumRange(), event.timestamp);
+        }
+    }
+
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Counts the peaks of the acceleration beside gravity
+     */
+    void onAcceleration(float x, float y, float z, long nanos) {
+        float deviation = (float) Math.sqrt(x * x + y * y + z * z) - SensorManager.GRAVITY_EARTH;
+        if (inPeak) {
+            inPeak = deviation > SHAKE_THRESHOLD / 2;
+            return;
+        }
+        if (deviation <= SHAKE_THRESHOLD) {
+            return;
+        }
+
+        inPeak = true;
+        if (peakCount == 0 || nanos - firstPeakNanos > SHAKE_WINDOW_NANOS) {
+            peakCount = 0;
+            firstPeakNanos = nanos;
+        }
+        if (++peakCount >= SHAKE_PEAKS) {
+            toggle(nanos);
+        }
+    }
+
+    /**
+     * Counts near-far transitions of the proximity sensor
+     */
+    void onProximity(boolean nowNear, long nanos) {
+        boolean wave = near && !nowNear;
+        near = nowNear;
+        if (!wave) {
+            return;
+        }
+
+        if (waveCount == 0 || nanos - firstWaveNanos > WAVE_WINDOW_NANOS) {
+            waveCount = 0;
+            firstWaveNanos = nanos;
+        }
+        if (++waveCount >= WAVES) {
+            toggle(nanos);
+        }
+    }
+
+    private void toggle(long nanos) {
+        boolean coolingDown = lastToggleNanos != 0 && nanos - lastToggleNanos < COOLDOWN_NANOS;
+        resetClassifiers();
+        if (!coolingDown && listener.onToggle()) {
+            lastToggleNanos = nanos;
+        }
+    }
+
+    private void resetClassifiers() {
+        inPeak = false;
+        peakCount = 0;
+        waveCount = 0;
+    }
+}
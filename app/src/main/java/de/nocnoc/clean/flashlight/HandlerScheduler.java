@@ -0,0 +1,84 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * HandlerScheduler posts the tasks of a flash light to a Handler.
+ * <p/>
+ * The camera2 calls of API 21 deliver their callbacks to a Handler only,
+ * so Camera2Backend unwraps the Handler of the executor it gets.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class HandlerScheduler implements TaskScheduler {
+
+    private final Handler handler;
+
+    HandlerScheduler(Handler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler must not be null");
+        }
+        this.handler = handler;
+    }
+
+    /**
+     * Returns the handler of an executor for the camera2 calls
+     *
+     * @param executor the executor of the callbacks
+     * @return the handler the executor posts to
+     * @throws IllegalArgumentException if the executor does not post to a handler
+     */
+    static Handler handlerOf(Executor executor) {
+        if (!(executor instanceof HandlerScheduler)) {
+            throw new IllegalArgumentException("camera2 callbacks need a HandlerScheduler, got " + executor);
+        }
+        return ((HandlerScheduler) executor).handler;
+    }
+
+    public void execute(Runnable task) {
+        handler.post(task);
+    }
+
+    public void schedule(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
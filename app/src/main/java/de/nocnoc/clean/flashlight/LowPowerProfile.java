@@ -0,0 +1,390 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.os.Build;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LowPowerProfile switches off the processing a torch session does not need.
+ * <p/>
+ * Nobody looks at the frames of the dummy buffer, so auto focus, auto white balance,
+ * noise reduction, edge enhancement, stabilization, face detection and the other optional
+ * stages are turned off where the camera offers an off mode. Auto exposure stays on,
+ * for the flash mode is only honored with CONTROL_AE_MODE_ON or OFF, but it is locked
+ * and runs at the lowest target frame rate of the camera.
+ * <p/>
+ * A switch only lands on a frame boundary, so the lowest frame rate, often 7.5 to 15 fps,
+ * would swallow the short phases of patterns. While switches follow a timeline,
+ * the requests use the cheapest range with at least TIMED_MIN_FPS instead.
+ * <p/>
+ * The profile is resolved once per camera from its characteristics, when the CameraCapabilities
+ * enumerate the cameras, and persisted with them, so opening a camera needs no characteristics.
+ * Capture results are checked against it, so a camera ignoring a setting is noticed.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class LowPowerProfile {
+
+    /**
+     * lowest frame rate of the timed range, a switch lands within 33 ms
+     */
+    static final int TIMED_MIN_FPS = 30;
+
+    /**
+     * lowest frame rate assumed if the camera lists no range, common for the preview template
+     */
+    static final int DEFAULT_MIN_FPS = 15;
+
+    /**
+     * flags of the off modes in the on-disk format
+     */
+    private static final int AF_OFF = 1;
+    private static final int AWB_OFF = 1 << 1;
+    private static final int NOISE_REDUCTION_OFF = 1 << 2;
+    private static final int EDGE_OFF = 1 << 3;
+    private static final int OPTICAL_STABILIZATION_OFF = 1 << 4;
+    private static final int ABERRATION_OFF = 1 << 5;
+    private static final int HOT_PIXEL_OFF = 1 << 6;
+    private static final int SHADING_OFF = 1 << 7;
+
+    private final boolean afOff;
+    private final boolean awbOff;
+    private final boolean noiseReductionOff;
+    private final boolean edgeOff;
+    private final boolean opticalStabilizationOff;
+    private final boolean aberrationOff;
+    private final boolean hotPixelOff;
+    private final boolean shadingOff;
+
+    /**
+     * lowest target frame rate range or null if the camera lists none
+     */
+    private final Range<Integer> fpsRange;
+
+    /**
+     * target frame rate range for timed switches or null if the camera lists none
+     */
+    private final Range<Integer> timedFpsRange;
+
+    private LowPowerProfile(int offModes, Range<Integer> fpsRange, Range<Integer> timedFpsRange) {
+        afOff = (offModes & AF_OFF) != 0;
+        awbOff = (offModes & AWB_OFF) != 0;
+        noiseReductionOff = (offModes & NOISE_REDUCTION_OFF) != 0;
+        edgeOff = (offModes & EDGE_OFF) != 0;
+        opticalStabilizationOff = (offModes & OPTICAL_STABILIZATION_OFF) != 0;
+        aberrationOff = (offModes & ABERRATION_OFF) != 0;
+        hotPixelOff = (offModes & HOT_PIXEL_OFF) != 0;
+        shadingOff = (offModes & SHADING_OFF) != 0;
+        this.fpsRange = fpsRange;
+        this.timedFpsRange = timedFpsRange;
+    }
+
+    /**
+     * Resolves the profile of a camera
+     *
+     * @param characteristics the characteristics of the camera
+     * @return the profile
+     */
+    static LowPowerProfile of(CameraCharacteristics characteristics) {
+        int offModes = 0;
+        if (contains(characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES),
+                CameraMetadata.CONTROL_AF_MODE_OFF)) {
+            offModes |= AF_OFF;
+        }
+        if (contains(characteristics.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES),
+                CameraMetadata.CONTROL_AWB_MODE_OFF)) {
+            offModes |= AWB_OFF;
+        }
+        if (contains(characteristics.get(CameraCharacteristics.NOISE_REDUCTION_AVAILABLE_NOISE_REDUCTION_MODES),
+                CameraMetadata.NOISE_REDUCTION_MODE_OFF)) {
+            offModes |= NOISE_REDUCTION_OFF;
+        }
+        if (contains(characteristics.get(CameraCharacteristics.EDGE_AVAILABLE_EDGE_MODES),
+                CameraMetadata.EDGE_MODE_OFF)) {
+            offModes |= EDGE_OFF;
+        }
+        if (contains(characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION),
+                CameraMetadata.LENS_OPTICAL_STABILIZATION_MODE_OFF)) {
+            offModes |= OPTICAL_STABILIZATION_OFF;
+        }
+        if (contains(characteristics.get(CameraCharacteristics.COLOR_CORRECTION_AVAILABLE_ABERRATION_MODES),
+                CameraMetadata.COLOR_CORRECTION_ABERRATION_MODE_OFF)) {
+            offModes |= ABERRATION_OFF;
+        }
+        if (contains(characteristics.get(CameraCharacteristics.HOT_PIXEL_AVAILABLE_HOT_PIXEL_MODES),
+                CameraMetadata.HOT_PIXEL_MODE_OFF)) {
+            offModes |= HOT_PIXEL_OFF;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && contains(characteristics.get(CameraCharacteristics.SHADING_AVAILABLE_MODES),
+                CameraMetadata.SHADING_MODE_OFF)) {
+            offModes |= SHADING_OFF;
+        }
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        return new LowPowerProfile(offModes, lowest(ranges), timed(ranges));
+    }
+
+    /**
+     * Reads a profile written by format()
+     *
+     * @param formatted the formatted profile
+     * @return the profile
+     * @throws IllegalArgumentException if the profile is malformed
+     */
+    static LowPowerProfile parse(String formatted) {
+        String[] fields = formatted.split("/", -1);
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Invalid low-power profile " + formatted);
+        }
+        return new LowPowerProfile(Integer.parseInt(fields[0]), parseRange(fields[1]), parseRange(fields[2]));
+    }
+
+    /**
+     * Formats the profile for the on-disk cache of the CameraCapabilities
+     *
+     * @return the off modes, the frame rate range and the timed range, separated by slashes
+     */
+    String format() {
+        int offModes = (afOff ? AF_OFF : 0)
+                | (awbOff ? AWB_OFF : 0)
+                | (noiseReductionOff ? NOISE_REDUCTION_OFF : 0)
+                | (edgeOff ? EDGE_OFF : 0)
+                | (opticalStabilizationOff ? OPTICAL_STABILIZATION_OFF : 0)
+                | (aberrationOff ? ABERRATION_OFF : 0)
+                | (hotPixelOff ? HOT_PIXEL_OFF : 0)
+                | (shadingOff ? SHADING_OFF : 0);
+        return offModes + "/" + formatRange(fpsRange) + "/" + formatRange(timedFpsRange);
+    }
+
+    /**
+     * Formats a frame rate range, lower-upper or an empty string for no range
+     */
+    private static String formatRange(Range<Integer> range) {
+        return range == null ? "" : range.getLower() + "-" + range.getUpper();
+    }
+
+    private static Range<Integer> parseRange(String formatted) {
+        if (formatted.isEmpty()) {
+            return null;
+        }
+        String[] bounds = formatted.split("-");
+        if (bounds.length != 2) {
+            throw new IllegalArgumentException("Invalid frame rate range " + formatted);
+        }
+        return new Range<>(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]));
+    }
+
+    /**
+     * Sets the profile on a request builder, with the lowest frame rate
+     *
+     * @param builder the builder of the torch requests
+     */
+    void apply(CaptureRequest.Builder builder) {
+        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        builder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
+        builder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+        builder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+        builder.set(CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE,
+                CameraMetadata.CONTROL_VIDEO_STABILIZATION_MODE_OFF);
+        builder.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE, CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF);
+
+        applyFrameRate(builder, false);
+        if (afOff) {
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF);
+        }
+        if (awbOff) {
+            builder.set(CaptureRequest.CONTROL_AWB_MODE, CameraMetadata.CONTROL_AWB_MODE_OFF);
+        }
+        if (noiseReductionOff) {
+            builder.set(CaptureRequest.NOISE_REDUCTION_MODE, CameraMetadata.NOISE_REDUCTION_MODE_OFF);
+        }
+        if (edgeOff) {
+            builder.set(CaptureRequest.EDGE_MODE, CameraMetadata.EDGE_MODE_OFF);
+        }
+        if (opticalStabilizationOff) {
+            builder.set(CaptureRequest.LENS_OPTICAL_STABILIZATION_MODE,
+                    CameraMetadata.LENS_OPTICAL_STABILIZATION_MODE_OFF);
+        }
+        if (aberrationOff) {
+            builder.set(CaptureRequest.COLOR_CORRECTION_ABERRATION_MODE,
+                    CameraMetadata.COLOR_CORRECTION_ABERRATION_MODE_OFF);
+        }
+        if (hotPixelOff) {
+            builder.set(CaptureRequest.HOT_PIXEL_MODE, CameraMetadata.HOT_PIXEL_MODE_OFF);
+        }
+        if (shadingOff) {
+            builder.set(CaptureRequest.SHADING_MODE, CameraMetadata.SHADING_MODE_OFF);
+        }
+    }
+
+    /**
+     * Returns the longest time a timed switch waits for the next frame
+     *
+     * @return the frame interval at the lowest frame rate of the timed range in microseconds
+     */
+    int getTimedFrameIntervalMicros() {
+        int fps = timedFpsRange != null ? timedFpsRange.getLower() : DEFAULT_MIN_FPS;
+        return 1000000 / Math.max(1, fps);
+    }
+
+    /**
+     * Sets the frame rate of the profile on a request builder
+     *
+     * @param builder the builder of the torch requests
+     * @param timed   true for the frame rate of timed switches, false for the lowest one
+     */
+    void applyFrameRate(CaptureRequest.Builder builder, boolean timed) {
+        Range<Integer> range = timed ? timedFpsRange : fpsRange;
+        if (range != null) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+        }
+    }
+
+    /**
+     * Checks a capture result against the profile
+     *
+     * @param result a result of a torch request
+     * @param timed  true if the request used the frame rate of timed switches
+     * @return the names of the settings the camera did not apply, empty if all were applied
+     */
+    List<String> verify(CaptureResult result, boolean timed) {
+        List<String> mismatches = new ArrayList<>();
+        check(mismatches, result, CaptureResult.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON, true);
+        check(mismatches, result, CaptureResult.CONTROL_VIDEO_STABILIZATION_MODE,
+                CameraMetadata.CONTROL_VIDEO_STABILIZATION_MODE_OFF, true);
+        check(mismatches, result, CaptureResult.STATISTICS_FACE_DETECT_MODE,
+                CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF, true);
+        check(mismatches, result, CaptureResult.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF, afOff);
+        check(mismatches, result, CaptureResult.CONTROL_AWB_MODE, CameraMetadata.CONTROL_AWB_MODE_OFF, awbOff);
+        check(mismatches, result, CaptureResult.NOISE_REDUCTION_MODE,
+                CameraMetadata.NOISE_REDUCTION_MODE_OFF, noiseReductionOff);
+        check(mismatches, result, CaptureResult.EDGE_MODE, CameraMetadata.EDGE_MODE_OFF, edgeOff);
+        check(mismatches, result, CaptureResult.LENS_OPTICAL_STABILIZATION_MODE,
+                CameraMetadata.LENS_OPTICAL_STABILIZATION_MODE_OFF, opticalStabilizationOff);
+        check(mismatches, result, CaptureResult.COLOR_CORRECTION_ABERRATION_MODE,
+                CameraMetadata.COLOR_CORRECTION_ABERRATION_MODE_OFF, aberrationOff);
+        check(mismatches, result, CaptureResult.HOT_PIXEL_MODE, CameraMetadata.HOT_PIXEL_MODE_OFF, hotPixelOff);
+        if (shadingOff) {
+            check(mismatches, result, CaptureResult.SHADING_MODE, CameraMetadata.SHADING_MODE_OFF, true);
+        }
+        Range<Integer> range = timed ? timedFpsRange : fpsRange;
+        if (range != null) {
+            Range<Integer> resultRange = result.get(CaptureResult.CONTROL_AE_TARGET_FPS_RANGE);
+            if (resultRange != null && !range.equals(resultRange)) {
+                mismatches.add(CaptureResult.CONTROL_AE_TARGET_FPS_RANGE.getName());
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Adds the name of the key to the mismatches, if the result has another value.
+     * Keys missing in the result are not counted, the camera does not have to report them.
+     */
+    private static void check(List<String> mismatches, CaptureResult result,
+                              CaptureResult.Key<Integer> key, int expected, boolean applied) {
+        if (!applied) {
+            return;
+        }
+        Integer value = result.get(key);
+        if (value != null && value != expected) {
+            mismatches.add(key.getName());
+        }
+    }
+
+    private static boolean contains(int[] modes, int mode) {
+        if (modes == null) {
+            return false;
+        }
+        for (int available : modes) {
+            if (available == mode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Chooses the range with the lowest maximum frame rate, then the lowest minimum
+     */
+    private static Range<Integer> lowest(Range<Integer>[] ranges) {
+        if (ranges == null || ranges.length == 0) {
+            return null;
+        }
+        Range<Integer> chosen = ranges[0];
+        for (Range<Integer> range : ranges) {
+            int upper = range.getUpper();
+            int chosenUpper = chosen.getUpper();
+            if (upper < chosenUpper || (upper == chosenUpper && range.getLower() < chosen.getLower())) {
+                chosen = range;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Chooses the range with the lowest maximum frame rate of those reaching TIMED_MIN_FPS,
+     * or the range with the highest minimum if none reaches it
+     */
+    private static Range<Integer> timed(Range<Integer>[] ranges) {
+        if (ranges == null || ranges.length == 0) {
+            return null;
+        }
+        Range<Integer> chosen = null;
+        for (Range<Integer> range : ranges) {
+            if (range.getLower() >= TIMED_MIN_FPS
+                    && (chosen == null || range.getUpper() < chosen.getUpper())) {
+                chosen = range;
+            }
+        }
+        if (chosen != null) {
+            return chosen;
+        }
+        chosen = ranges[0];
+        for (Range<Integer> range : ranges) {
+            if (range.getLower() > chosen.getLower()) {
+                chosen = range;
+            }
+        }
+        return chosen;
+    }
+}
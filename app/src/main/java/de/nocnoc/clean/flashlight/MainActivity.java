@@ -33,10 +33,13 @@ package de.nocnoc.clean.flashlight;
  */
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.pm.PackageManager;
-import android.hardware.camera2.CameraManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -44,22 +47,105 @@ import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.Toast;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+
 /**
  * MainActivity manages the user interactions
+ * <p/>
+ * The first frame is drawn without touching the camera. The toggle shows a warming up state
+ * while the camera discovery runs on a background thread, the camera is opened afterwards.
+ * The startup is traced in the sections MainActivity.onCreate, FlashLight.init and FlashLight.open,
+ * e.g. systrace -a de.nocnoc.clean.cleanlight
+ * <p/>
+ * The activity is one client of the FlashLightBroker. Its handle is handed over to the
+ * recreated activity on configuration changes and released when the activity is finished.
+ * <p/>
+ * Besides the toggle, the volume keys and a shake or wave gesture switch the flash,
+ * so it can be switched eyes-free, e.g. with gloves.
+ * <p/>
  *
  * @author nocnoc
  */
 public class MainActivity extends Activity {
 
-    private SimpleFlashLight flashLight;
+    /**
+     * time the camera has to confirm a switch
+     */
+    private static final long CONFIRM_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * alpha of the toggle while the flash light is warming up
+     */
+    private static final float WARMING_UP_ALPHA = 0.4f;
+
+    private FlashLightBroker broker;
+
+    /**
+     * elapsed realtime of the launch until the first switch, 0 afterwards
+     */
+    private long launchedAt;
+    private FlashLightBroker.Handle flashLight;
     private ImageButton flashLightToggle;
 
+    /**
+     * handler of the main thread to continue the deferred initialization
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * switches the flash by gestures while the activity is resumed
+     */
+    private GestureToggleDetector gestureDetector;
+
+    private boolean resumed;
+
+    /**
+     * Discovers the camera off the startup path and hands the flash light to the main thread
+     */
+    private final Runnable initFlashLightTask = new Runnable() {
+        public void run() {
+            Trace.beginSection("FlashLight.init");
+            try {
+                final FlashLightBroker initialized = checkHasFlash()
+                        ? FlashLightBroker.getInstance(getApplicationContext())
+                        : null;
+                final FlashLightBroker.Handle handle = initialized != null
+                        ? initialized.acquireForUser("activity")
+                        : null;
+                mainHandler.post(new Runnable() {
+                    public void run() {
+                        onFlashLightInitialized(initialized, handle);
+                    }
+                });
+            } finally {
+                Trace.endSection();
+            }
+        }
+    };
+
     /**
      * Reacts on button click
      */
     private final View.OnClickListener onClickToggleFlashlight = new View.OnClickListener() {
         public void onClick(View view) {
-            flashLight.switchFlash();
+            toggleFlash();
+        }
+    };
+
+    /**
+     * Reacts on the confirmation of a switch
+     */
+    private final SimpleFlashLight.OnFlashResultListener onFlashResult = new FlashResultListener(this);
+
+    /**
+     * Reacts on device and flash state changes, including changes made outside of this app
+     */
+    private final SimpleFlashLight.OnStateChangedListener onFlashStateChanged =
+            new SimpleFlashLight.OnStateChangedListener() {
+        public void onStateChanged(SimpleFlashLight flashLight) {
+            flashLightToggle.setEnabled(flashLight.isDeviceOpened());
             indicateFlashState();
         }
     };
@@ -67,29 +153,147 @@ public class MainActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
+        Trace.beginSection("MainActivity.onCreate");
+        try {
+            super.onCreate(savedInstanceState);
+            if (savedInstanceState == null) {
+                launchedAt = SystemClock.elapsedRealtime();
+            }
+
+            setContentView(R.layout.activity_main);
+            flashLightToggle = ((ImageButton) findViewById(R.id.toggleLightButton));
 
-        setContentView(R.layout.activity_main);
-        flashLightToggle = ((ImageButton) findViewById(R.id.toggleLightButton));
+            // warming up until the flash light is initialized
+            flashLightToggle.setEnabled(false);
+            flashLightToggle.setAlpha(WARMING_UP_ALPHA);
+            flashLightToggle.setContentDescription(getString(R.string.flash_warming_up));
 
-        if (checkHasFlash()) {
-            flashLight = SimpleFlashLightImpl.getInstance((CameraManager) getSystemService(Context.CAMERA_SERVICE));
+            // for there is no initial background image and the togle state depends on
+            // the implementation of SimpleFlashLight, the user feedback hast to be set here
+            indicateFlashState();
+
+            Object retained = getLastNonConfigurationInstance();
+            if (retained instanceof FlashLightBroker.Handle) {
+                // the broker has been initialized by the previous activity
+                onFlashLightInitialized(FlashLightBroker.getInstance(getApplicationContext()),
+                        (FlashLightBroker.Handle) retained);
+            } else {
+                new Thread(initFlashLightTask, "FlashLightInit").start();
+            }
+        } finally {
+            Trace.endSection();
         }
+    }
 
-        if (flashLight != null && flashLight.openCamera()) {
-            flashLightToggle.setEnabled(true);
-            flashLightToggle.setOnClickListener(onClickToggleFlashlight);
-        } else {
-            flashLightToggle.setEnabled(false);
-            flashLightToggle.setOnClickListener(null);
-            Toast.makeText(this, R.string.flash_device_not_available, Toast.LENGTH_SHORT).show();
+    /**
+     * Opens the initialized flash light and ends the warming up state
+     *
+     * @param initialized the broker or null if there is no suitable camera
+     * @param handle      the handle acquired for this activity or null if there is no suitable camera
+     */
+    private void onFlashLightInitialized(FlashLightBroker initialized, FlashLightBroker.Handle handle) {
+        if (isDestroyed()) {
+            if (handle != null) {
+                handle.closeCamera();
+            }
+            return;
+        }
+
+        Trace.beginSection("FlashLight.open");
+        try {
+            broker = initialized;
+            flashLight = handle;
+            flashLightToggle.setAlpha(1f);
+            flashLightToggle.setContentDescription(getString(R.string.toggle_light_title));
+
+            if (flashLight != null) {
+                flashLight.addOnStateChangedListener(onFlashStateChanged);
+                FlashLightWidgetProvider.follow(this, broker);
+                FlashLightService.follow(this, broker);
+            }
+
+            if (flashLight != null && flashLight.openCamera()) {
+                // the toggle is enabled as soon as the device is opened
+                flashLightToggle.setEnabled(flashLight.isDeviceOpened());
+                flashLightToggle.setOnClickListener(onClickToggleFlashlight);
+                gestureDetector = new GestureToggleDetector(this, flashLight);
+                if (resumed) {
+                    gestureDetector.start(GestureToggleDetector.FOREGROUND_REPORT_LATENCY_US);
+                }
+            } else {
+                flashLightToggle.setEnabled(false);
+                flashLightToggle.setOnClickListener(null);
+                Toast.makeText(this, R.string.flash_device_not_available, Toast.LENGTH_SHORT).show();
+            }
+
+            indicateFlashState();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        resumed = true;
+        if (gestureDetector != null) {
+            gestureDetector.start(GestureToggleDetector.FOREGROUND_REPORT_LATENCY_US);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        resumed = false;
+        if (gestureDetector != null) {
+            gestureDetector.stop();
+        }
+        super.onPause();
+    }
+
+    /**
+     * Switches the flash by the volume keys. The key is consumed, so the volume is not changed.
+     */
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (isVolumeKey(keyCode) && flashLight != null && flashLight.isDeviceOpened()) {
+            // a held key switches only once
+            if (event.getRepeatCount() == 0) {
+                toggleFlash();
+            }
+            return true;
         }
+        return super.onKeyDown(keyCode, event);
+    }
 
-        // for there is no initial background image and the togle state depends on
-        // the implementation of SimpleFlashLight, the user feedback hast to be set here
-        indicateFlashState();
+    @Override
+    public boolean onKeyUp(int keyCode, KeyEvent event) {
+        if (isVolumeKey(keyCode) && flashLight != null && flashLight.isDeviceOpened()) {
+            return true;
+        }
+        return super.onKeyUp(keyCode, event);
     }
 
+    private static boolean isVolumeKey(int keyCode) {
+        return keyCode == KeyEvent.KEYCODE_VOLUME_UP || keyCode == KeyEvent.KEYCODE_VOLUME_DOWN;
+    }
+
+    /**
+     * Switches the user claim. The requested state is shown at once, the result corrects it if the switch fails.
+     */
+    private void toggleFlash() {
+        boolean on = !flashLight.isClaimed();
+        if (!on) {
+            TimeToLight.cancel();
+        } else if (launchedAt != 0) {
+            TimeToLight.start(TimeToLight.LAUNCH, launchedAt);
+        } else {
+            TimeToLight.start(TimeToLight.ACTIVITY, SystemClock.elapsedRealtime());
+        }
+        // only the first switch belongs to the launch
+        launchedAt = 0;
+        flashLight.setFlash(on, CONFIRM_TIMEOUT_MILLIS, onFlashResult);
+    }
 
     /**
      * Checks if flash feature is available
@@ -108,6 +312,16 @@ public class MainActivity extends Activity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        MenuItem allFlashUnits = menu.findItem(R.id.action_all_flash_units);
+        allFlashUnits.setChecked(SimpleFlashLightFactory.isAllFlashUnitsEnabled(this));
+        // the light is only exchanged while it is off
+        allFlashUnits.setEnabled(broker != null && !broker.isFlashRequested());
+        menu.findItem(R.id.action_gesture_listening).setChecked(FlashLightService.isListening(this));
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Handle action bar item clicks here. The action bar will
@@ -115,6 +329,14 @@ public class MainActivity extends Activity {
         // as you specify a parent activity in AndroidManifest.xml.
         int id = item.getItemId();
 
+        if (id == R.id.action_all_flash_units) {
+            setAllFlashUnits(!item.isChecked());
+            return true;
+        }
+        if (id == R.id.action_gesture_listening) {
+            FlashLightService.setListening(this, !item.isChecked());
+            return true;
+        }
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
             return true;
@@ -124,10 +346,32 @@ public class MainActivity extends Activity {
     }
 
     /**
-     * Gives a feadback for activating or deactivating flashlight
+     * Stores the choice of the flash units and exchanges the shared flash light
+     *
+     * @param allFlashUnits true to drive all cameras with a flash at once
+     */
+    private void setAllFlashUnits(boolean allFlashUnits) {
+        SimpleFlashLightFactory.setAllFlashUnitsEnabled(this, allFlashUnits);
+        if (broker != null && !broker.setAllFlashUnits(this, allFlashUnits)) {
+            Toast.makeText(this, R.string.flash_kept_on, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Gives a feadback for activating or deactivating flashlight.
+     * Shows the requested state, so a tap is reflected before the flash has switched.
      */
     private void indicateFlashState() {
-        if (flashLight.isFlashOn()) {
+        indicateFlashState(flashLight != null && flashLight.isFlashRequested());
+    }
+
+    /**
+     * Shows the given flash state on the toggle.
+     *
+     * @param on true to show the flash as activated
+     */
+    private void indicateFlashState(boolean on) {
+        if (on) {
             //flashLightToggle.setBackgroundResource(R.drawable.light_on);
             flashLightToggle.setImageResource(R.mipmap.light_on);
         } else {
@@ -137,11 +381,86 @@ public class MainActivity extends Activity {
 
 
     /**
-     * Assure that camera is closed before leaving the app.
+     * Dumps the flash light metrics, e.g. by
+     * adb shell dumpsys activity de.nocnoc.clean.cleanlight/de.nocnoc.clean.flashlight.MainActivity
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (broker != null) {
+            SimpleFlashLight shared = broker.getFlashLight();
+            writer.println(prefix + "SimpleFlashLight " + shared.getClass().getSimpleName()
+                    + ", " + broker.getClientCount() + " clients");
+            shared.getMetrics().dump(prefix + "  ", writer);
+            if (shared instanceof MultiFlashLight) {
+                for (SimpleFlashLight unit : ((MultiFlashLight) shared).getUnits()) {
+                    writer.println(prefix + "  unit " + unit.getClass().getSimpleName());
+                    unit.getMetrics().dump(prefix + "    ", writer);
+                }
+            }
+        }
+        writer.println(prefix + "  time to light: launch " + TimeToLight.getLastLaunchMillis()
+                + " ms, activity " + TimeToLight.getLastActivityMillis()
+                + " ms, widget " + TimeToLight.getLastWidgetMillis() + " ms");
+    }
+
+    /**
+     * Hands the handle over to the recreated activity, so the session is kept open
+     * and the flash stays lit on configuration changes.
+     */
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return flashLight;
+    }
+
+    /**
+     * Releases the handle before leaving the app, the broker closes the camera with the last client.
+     * The user claim outlives the handle, so the activity can go while the light stays on.
      */
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        flashLight.closeCamera();
+        if (flashLight != null) {
+            flashLight.removeOnStateChangedListener(onFlashStateChanged);
+            if (!isChangingConfigurations()) {
+                flashLight.closeCamera();
+            }
+        }
+    }
+
+    /**
+     * Reacts on the confirmation of a switch. A pending switch outlives the activity on a
+     * configuration change, so the listener holds the activity weakly and drops the results
+     * of a destroyed one. The recreated activity follows the flash by its state listener.
+     */
+    private static final class FlashResultListener implements SimpleFlashLight.OnFlashResultListener {
+
+        private final WeakReference<MainActivity> activity;
+
+        FlashResultListener(MainActivity activity) {
+            this.activity = new WeakReference<>(activity);
+        }
+
+        public void onFlashConfirmed(SimpleFlashLight flashLight, boolean on, long confirmedAtNanos) {
+            MainActivity current = activity.get();
+            if (current != null && !current.isDestroyed()) {
+                current.indicateFlashState();
+            }
+        }
+
+        public void onFlashFailed(SimpleFlashLight flashLight, boolean on, int reason) {
+            if (reason == REASON_SUPERSEDED || reason == REASON_CLOSED) {
+                return;
+            }
+            MainActivity current = activity.get();
+            if (current == null || current.isDestroyed()) {
+                return;
+            }
+            // show what the camera actually does
+            current.indicateFlashState(flashLight.isFlashOn());
+            Toast.makeText(current,
+                    reason == REASON_CLAIMED ? R.string.flash_kept_on : R.string.flash_switch_failed,
+                    Toast.LENGTH_SHORT).show();
+        }
     }
 }
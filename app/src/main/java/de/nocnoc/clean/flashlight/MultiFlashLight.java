@@ -0,0 +1,403 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MultiFlashLight drives all flash units of a device as one flash light,
+ * e.g. front flashes and secondary rear modules together with the main flash.
+ * <p/>
+ * Every unit is a SimpleFlashLight with its own camera thread. So opening, configuring
+ * and switching fan out to all units at once and run in parallel:
+ * the latency is bounded by the slowest unit, not by the sum of all units.
+ * <p/>
+ * Units which could not be opened, e.g. because the platform limits the number of
+ * open cameras, are left out. The limit may also show up asynchronously as a lost camera,
+ * so a secondary unit which needed more than MAX_UNIT_RECOVERIES reopens is closed and left
+ * out until the next openCamera(). A failing secondary unit does not fail a joint switch.
+ * The flash is reported as on while any unit is lit.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class MultiFlashLight implements SimpleFlashLight {
+
+    /**
+     * reopens of a secondary unit after which it is left out
+     */
+    static final int MAX_UNIT_RECOVERIES = 3;
+
+    /**
+     * the flash units, the primary one first
+     */
+    private final SimpleFlashLight[] units;
+
+    /**
+     * reopen count of each unit at the last openCamera()
+     */
+    private final long[] reopenBaselines;
+
+    /**
+     * units left out until the next openCamera()
+     */
+    private final Set<SimpleFlashLight> excluded =
+            Collections.newSetFromMap(new ConcurrentHashMap<SimpleFlashLight, Boolean>());
+
+    /**
+     * toggle latency until all units switched and the flash-on time of any unit
+     */
+    private final TorchMetrics metrics = new TorchMetrics();
+
+    /**
+     * System.nanoTime() of the switch waiting for all units or 0
+     */
+    private volatile long switchRequestedAtNanos;
+
+    /**
+     * listeners to be notified on the main thread
+     */
+    private final StateChangedListeners stateChangedListeners = new StateChangedListeners();
+
+    /**
+     * Forwards the state changes of the units. Runs on the main thread.
+     */
+    private final OnStateChangedListener onUnitStateChanged = new OnStateChangedListener() {
+        public void onStateChanged(SimpleFlashLight unit) {
+            excludeUnrecoverable();
+            long now = System.nanoTime();
+            long requestedAt = switchRequestedAtNanos;
+            if (requestedAt != 0 && isSwitched()) {
+                metrics.getToggleLatency().record(now - requestedAt);
+                switchRequestedAtNanos = 0;
+            }
+            metrics.recordFlash(isFlashOn(), now);
+
+            OnStateChangedListener[] listeners = stateChangedListeners.get();
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onStateChanged(MultiFlashLight.this);
+            }
+        }
+    };
+
+
+    /**
+     * Creates a flash light of several flash units
+     *
+     * @param units the flash units, the primary one first. must not be empty.
+     */
+    MultiFlashLight(SimpleFlashLight[] units) {
+        if (units == null || units.length == 0) {
+            throw new IllegalArgumentException("units must not be empty");
+        }
+        this.units = units.clone();
+        this.reopenBaselines = new long[units.length];
+        for (SimpleFlashLight unit : this.units) {
+            unit.addOnStateChangedListener(onUnitStateChanged);
+        }
+    }
+
+    /**
+     * Returns the flash units, e.g. to read their metrics
+     *
+     * @return the flash units, the primary one first
+     */
+    public SimpleFlashLight[] getUnits() {
+        return units.clone();
+    }
+
+
+    public boolean isInitialized() {
+        for (SimpleFlashLight unit : units) {
+            if (!unit.isInitialized()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts opening all units at once. Each unit opens on its own thread.
+     *
+     * @return true if opening was started for any unit
+     */
+    public synchronized boolean openCamera() {
+        excluded.clear();
+        boolean started = false;
+        for (int i = 0; i < units.length; i++) {
+            reopenBaselines[i] = units[i].getMetrics().getReopenCount();
+            try {
+                started |= units[i].openCamera();
+            } catch (IllegalStateException e) {
+                // an unusable unit is left out
+                excluded.add(units[i]);
+            }
+        }
+        return started;
+    }
+
+
+    public boolean closeCamera() {
+        boolean closed = true;
+        for (SimpleFlashLight unit : units) {
+            closed &= unit.closeCamera();
+        }
+        return closed;
+    }
+
+    /**
+     * Returns the device state
+     *
+     * @return true if any unit is opened or opening
+     */
+    public boolean isDeviceOpened() {
+        for (SimpleFlashLight unit : units) {
+            if (isUsed(unit)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public synchronized void switchFlash() {
+        requestFlash(!isFlashRequested());
+    }
+
+
+    public synchronized void turnOnFlash() {
+        requestFlash(true);
+    }
+
+
+    public synchronized void turnOffFlash() {
+        requestFlash(false);
+    }
+
+    /**
+     * Switches all opened units. Each unit confirms on its own,
+     * the listener gets the result as soon as all of them are done.
+     */
+    public synchronized void setFlash(boolean on, long timeoutMillis, OnFlashResultListener listener) {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
+
+        int opened = 0;
+        for (SimpleFlashLight unit : units) {
+            if (isUsed(unit)) {
+                opened++;
+            }
+        }
+
+        OnFlashResultListener unitListener = listener == null ? null : new JointResult(listener, opened);
+        switchRequestedAtNanos = System.nanoTime();
+        for (SimpleFlashLight unit : units) {
+            if (isUsed(unit)) {
+                unit.setFlash(on, timeoutMillis, unitListener);
+            }
+        }
+    }
+
+    /**
+     * Returns the flash state
+     *
+     * @return true if any unit is lit
+     */
+    public boolean isFlashOn() {
+        for (SimpleFlashLight unit : units) {
+            if (unit.isFlashOn()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the requested flash state
+     *
+     * @return true if any opened unit is requested to be lit
+     */
+    public boolean isFlashRequested() {
+        for (SimpleFlashLight unit : units) {
+            if (isUsed(unit) && unit.isFlashRequested()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the joint metrics: the toggle latency until all units switched
+     * and the time any unit was lit. The units keep their own metrics.
+     */
+    public TorchMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    public void addOnStateChangedListener(OnStateChangedListener listener) {
+        stateChangedListeners.add(listener);
+    }
+
+
+    public void removeOnStateChangedListener(OnStateChangedListener listener) {
+        stateChangedListeners.remove(listener);
+    }
+
+    public void setTimedEdges(boolean timedEdges) {
+        for (SimpleFlashLight unit : units) {
+            unit.setTimedEdges(timedEdges);
+        }
+    }
+
+    /**
+     * Returns the frame interval of the slowest unit
+     */
+    public int getFrameIntervalMicros() {
+        int interval = 0;
+        for (SimpleFlashLight unit : units) {
+            interval = Math.max(interval, unit.getFrameIntervalMicros());
+        }
+        return interval;
+    }
+
+    /**
+     * Fans the request out to all opened units.
+     * The units only post the switch to their threads, so they switch in parallel.
+     */
+    private void requestFlash(boolean on) {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
+
+        switchRequestedAtNanos = System.nanoTime();
+        for (SimpleFlashLight unit : units) {
+            if (!isUsed(unit)) {
+                continue;
+            }
+            if (on) {
+                unit.turnOnFlash();
+            } else {
+                unit.turnOffFlash();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the unit is opened and not left out
+     */
+    private boolean isUsed(SimpleFlashLight unit) {
+        return unit.isDeviceOpened() && !excluded.contains(unit);
+    }
+
+    /**
+     * Closes the secondary units which keep losing their camera, e.g. because the platform
+     * refuses another open camera. Their recovery would retry forever. Runs on the main thread.
+     */
+    private synchronized void excludeUnrecoverable() {
+        for (int i = 1; i < units.length; i++) {
+            SimpleFlashLight unit = units[i];
+            if (!excluded.contains(unit)
+                    && unit.getMetrics().getReopenCount() - reopenBaselines[i] > MAX_UNIT_RECOVERIES) {
+                excluded.add(unit);
+                unit.closeCamera();
+            }
+        }
+    }
+
+    /**
+     * Checks if all opened units reached their requested state
+     */
+    private boolean isSwitched() {
+        for (SimpleFlashLight unit : units) {
+            if (isUsed(unit) && unit.isFlashOn() != unit.isFlashRequested()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Joins the results of the units into one result. Runs on the main thread.
+     * A failure of the primary unit fails the switch. A secondary unit losing its camera
+     * is left out, so the switch is confirmed by the last unit which confirmed it.
+     */
+    private final class JointResult implements OnFlashResultListener {
+
+        private final OnFlashResultListener listener;
+        private int remaining;
+        private int confirmed;
+        private boolean done;
+
+        /**
+         * confirmation time of the last unit which confirmed
+         */
+        private long confirmedAtNanos;
+
+        JointResult(OnFlashResultListener listener, int units) {
+            this.listener = listener;
+            this.remaining = units;
+        }
+
+        public void onFlashConfirmed(SimpleFlashLight unit, boolean on, long unitConfirmedAtNanos) {
+            confirmed++;
+            if (confirmed == 1 || unitConfirmedAtNanos - confirmedAtNanos > 0) {
+                confirmedAtNanos = unitConfirmedAtNanos;
+            }
+            if (!done && --remaining == 0) {
+                done = true;
+                listener.onFlashConfirmed(MultiFlashLight.this, on, confirmedAtNanos);
+            }
+        }
+
+        public void onFlashFailed(SimpleFlashLight unit, boolean on, int reason) {
+            if (done) {
+                return;
+            }
+            boolean leftOut = unit != units[0]
+                    && (reason == REASON_CAMERA_ERROR || reason == REASON_CLOSED || excluded.contains(unit));
+            if (leftOut && --remaining > 0) {
+                return;
+            }
+            done = true;
+            if (leftOut && confirmed > 0) {
+                listener.onFlashConfirmed(MultiFlashLight.this, on, confirmedAtNanos);
+            } else {
+                listener.onFlashFailed(MultiFlashLight.this, on, reason);
+            }
+        }
+    }
+}
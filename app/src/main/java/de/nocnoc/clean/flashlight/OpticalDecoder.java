@@ -0,0 +1,177 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * OpticalDecoder decodes an OpticalFrame from sampled light intensities,
+ * e.g. of a photodiode on a test bench or of a simulated receiver.
+ * <p/>
+ * The samples are sliced at the midpoint of the darkest and the brightest sample.
+ * The frame starts with the first bright sample. Every bit is resynchronized on its
+ * mid-bit edge, so the jitter of the torch edges does not add up over the frame.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class OpticalDecoder {
+
+    /**
+     * a receiver needs at least this many samples per bit
+     */
+    private static final float MIN_SAMPLES_PER_BIT = 4f;
+
+    private final float[] samples;
+    private final float threshold;
+    private final float samplesPerBit;
+
+    /**
+     * start of the next bit in samples
+     */
+    private float bitStart;
+
+
+    private OpticalDecoder(float[] samples, float threshold, float samplesPerBit, float bitStart) {
+        this.samples = samples;
+        this.threshold = threshold;
+        this.samplesPerBit = samplesPerBit;
+        this.bitStart = bitStart;
+    }
+
+    /**
+     * Decodes the first frame of the samples
+     *
+     * @param samples      the light intensities
+     * @param sampleRateHz the sample rate of the receiver
+     * @param bitMicros    the bit duration of the transmitter in microseconds
+     * @return the payload or null if no valid frame was received
+     */
+    public static byte[] decode(float[] samples, float sampleRateHz, int bitMicros) {
+        float samplesPerBit = sampleRateHz * bitMicros / 1000000f;
+        if (samplesPerBit < MIN_SAMPLES_PER_BIT) {
+            throw new IllegalArgumentException("Sample rate too low: " + samplesPerBit + " samples per bit");
+        }
+
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float sample : samples) {
+            min = Math.min(min, sample);
+            max = Math.max(max, sample);
+        }
+        if (!(max > min)) {
+            return null;
+        }
+        float threshold = (min + max) / 2;
+
+        int start = 0;
+        while (start < samples.length && samples[start] <= threshold) {
+            start++;
+        }
+        return new OpticalDecoder(samples, threshold, samplesPerBit, start).readFrame();
+    }
+
+    private byte[] readFrame() {
+        for (int i = 0; i < OpticalFrame.PREAMBLE_LENGTH; i++) {
+            if (readByte() != OpticalFrame.PREAMBLE) {
+                return null;
+            }
+        }
+        if (readByte() != OpticalFrame.START_DELIMITER) {
+            return null;
+        }
+
+        int length = readByte();
+        if (length < 0) {
+            return null;
+        }
+        // length, payload and checksum are checked together
+        byte[] checked = new byte[length + 1];
+        checked[0] = (byte) length;
+        for (int i = 1; i <= length; i++) {
+            int b = readByte();
+            if (b < 0) {
+                return null;
+            }
+            checked[i] = (byte) b;
+        }
+        int crc = readByte();
+        if (crc < 0 || (byte) crc != OpticalFrame.crc8(checked, 0, checked.length)) {
+            return null;
+        }
+        return Arrays.copyOfRange(checked, 1, checked.length);
+    }
+
+    /**
+     * Reads a byte, most significant bit first
+     *
+     * @return the byte or -1 on a coding violation or the end of the samples
+     */
+    private int readByte() {
+        int value = 0;
+        for (int i = 0; i < 8; i++) {
+            int bit = readBit();
+            if (bit < 0) {
+                return -1;
+            }
+            value = (value << 1) | bit;
+        }
+        return value;
+    }
+
+    /**
+     * Reads a bit and resynchronizes on its mid-bit edge
+     *
+     * @return the bit or -1 on a coding violation or the end of the samples
+     */
+    private int readBit() {
+        int firstHalf = (int) (bitStart + samplesPerBit / 4);
+        int secondHalf = (int) (bitStart + samplesPerBit * 3 / 4);
+        if (secondHalf >= samples.length) {
+            return -1;
+        }
+        boolean first = samples[firstHalf] > threshold;
+        boolean second = samples[secondHalf] > threshold;
+        if (first == second) {
+            return -1;
+        }
+
+        // the mid-bit edge is the first sample of the second half's level
+        int edge = firstHalf + 1;
+        while (edge < secondHalf && samples[edge] > threshold == first) {
+            edge++;
+        }
+        bitStart = edge + samplesPerBit / 2;
+        return first ? 1 : 0;
+    }
+}
@@ -0,0 +1,127 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * OpticalFrame frames small payloads for the optical transmission by the flash light.
+ * <p/>
+ * A frame is sent as Manchester code, most significant bit first:
+ * two preamble bytes to lock the receiver's clock, the start delimiter,
+ * the payload length, the payload and a CRC-8 of length and payload.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class OpticalFrame {
+
+    /**
+     * preamble byte, a steady edge every bit
+     */
+    static final int PREAMBLE = 0xAA;
+
+    /**
+     * number of preamble bytes
+     */
+    static final int PREAMBLE_LENGTH = 2;
+
+    /**
+     * start frame delimiter, ends the preamble
+     */
+    static final int START_DELIMITER = 0xAB;
+
+    /**
+     * largest payload of a frame in bytes
+     */
+    public static final int MAX_PAYLOAD = 255;
+
+    /**
+     * CRC-8 polynomial x^8 + x^2 + x + 1
+     */
+    private static final int CRC_POLYNOMIAL = 0x07;
+
+    /**
+     * bytes of a frame besides the payload
+     */
+    static final int OVERHEAD = PREAMBLE_LENGTH + 3;
+
+
+    private OpticalFrame() {
+    }
+
+    /**
+     * Frames a payload and encodes it as flash pattern
+     *
+     * @param payload   the payload, at most MAX_PAYLOAD bytes
+     * @param bitMicros the bit duration in microseconds
+     * @return the compiled pattern of the frame
+     */
+    public static FlashPattern encode(byte[] payload, int bitMicros) {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too long: " + payload.length + " bytes");
+        }
+
+        byte[] frame = new byte[payload.length + OVERHEAD];
+        int index = 0;
+        for (int i = 0; i < PREAMBLE_LENGTH; i++) {
+            frame[index++] = (byte) PREAMBLE;
+        }
+        frame[index++] = (byte) START_DELIMITER;
+        int lengthIndex = index;
+        frame[index++] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, index, payload.length);
+        index += payload.length;
+        frame[index] = crc8(frame, lengthIndex, payload.length + 1);
+
+        return FlashPattern.manchester(frame, bitMicros);
+    }
+
+    /**
+     * Computes the CRC-8 of a byte range
+     *
+     * @param data   the bytes
+     * @param offset the first byte of the range
+     * @param length the length of the range
+     * @return the checksum
+     */
+    static byte crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ CRC_POLYNOMIAL : crc << 1;
+            }
+            crc &= 0xFF;
+        }
+        return (byte) crc;
+    }
+}
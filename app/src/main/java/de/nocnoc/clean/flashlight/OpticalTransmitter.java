@@ -0,0 +1,222 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.charset.Charset;
+
+/**
+ * OpticalTransmitter sends small payloads, e.g. IDs or short strings, by the flash light.
+ * <p/>
+ * The payload is framed by OpticalFrame and played as timed torch edges by a FlashPatternPlayer,
+ * so every edge uses the pre-built requests and is scheduled against an absolute deadline.
+ * The achieved payload rate and the timing error of the confirmed edges are measured per frame.
+ * <p/>
+ * A switch of a capture session takes effect with the next camera frame, so an edge is late
+ * by up to one frame interval. The receiver tolerates a quarter bit, so by default the bit
+ * duration spans FRAMES_PER_BIT frame intervals of the running session, e.g. 167 ms at 30 fps.
+ * This limits the session path to less than 6 payload bits per second, which is enough for IDs
+ * and short strings but not more. The session path is only used before API 23, from there on
+ * SimpleFlashLightFactory picks the TorchFlashLight, which is not bound to frames and uses
+ * MIN_BIT_MICROS, i.e. up to 50 bits per second.
+ * <p/>
+ * A fixed bit duration overrides this, e.g. for a receiver that tolerates more timing error.
+ *
+ * @author nocnoc
+ */
+public class OpticalTransmitter {
+
+    /**
+     * frame intervals of a bit, the late edge of one frame stays below a quarter bit
+     */
+    public static final int FRAMES_PER_BIT = 5;
+
+    /**
+     * shortest derived bit duration in microseconds, bounded by the switch latency of the torch
+     */
+    public static final int MIN_BIT_MICROS = 20000;
+
+    private final FlashPatternPlayer player;
+
+    private final SimpleFlashLight flashLight;
+
+    /**
+     * the fixed bit duration or 0 to derive it from the frame rate
+     */
+    private final int fixedBitMicros;
+
+    /**
+     * bit duration of the last frame
+     */
+    private volatile int bitMicros;
+
+    /**
+     * payload bits of the last frame
+     */
+    private volatile int payloadBits;
+
+
+    /**
+     * Creates a transmitter with a bit duration derived from the frame rate of the flash light
+     *
+     * @param flashLight the flash light to send by, usually a handle acquired from the FlashLightBroker.
+     *                   must not be null.
+     */
+    public OpticalTransmitter(SimpleFlashLight flashLight) {
+        this.player = new FlashPatternPlayer(flashLight);
+        this.flashLight = flashLight;
+        this.fixedBitMicros = 0;
+    }
+
+    /**
+     * Creates a transmitter
+     *
+     * @param flashLight the flash light to send by. must not be null.
+     * @param bitMicros  the bit duration in microseconds
+     */
+    public OpticalTransmitter(SimpleFlashLight flashLight, int bitMicros) {
+        if (bitMicros < 2) {
+            throw new IllegalArgumentException("bitMicros must be at least 2");
+        }
+        this.player = new FlashPatternPlayer(flashLight);
+        this.flashLight = flashLight;
+        this.fixedBitMicros = bitMicros;
+        this.bitMicros = bitMicros;
+    }
+
+    /**
+     * Starts sending a payload. A running frame is aborted.
+     *
+     * @param payload the payload, at most OpticalFrame.MAX_PAYLOAD bytes
+     */
+    public void send(byte[] payload) {
+        bitMicros = fixedBitMicros > 0 ? fixedBitMicros
+                : Math.max(MIN_BIT_MICROS, FRAMES_PER_BIT * flashLight.getFrameIntervalMicros());
+        FlashPattern frame = OpticalFrame.encode(payload, bitMicros);
+        payloadBits = payload.length * 8;
+        player.play(frame, false);
+    }
+
+    /**
+     * Starts sending a string encoded as UTF-8
+     *
+     * @param text the text to send
+     */
+    public void send(String text) {
+        send(text.getBytes(Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Waits until the frame has been sent
+     *
+     * @param timeoutMillis the longest time to wait, 0 to wait forever
+     * @return true if the frame has been sent
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public boolean awaitSent(long timeoutMillis) throws InterruptedException {
+        return player.awaitFinished(timeoutMillis);
+    }
+
+    /**
+     * Aborts sending. The flash is turned off.
+     */
+    public void stop() {
+        player.stop();
+    }
+
+    /**
+     * Returns the bit duration of the last frame
+     *
+     * @return the bit duration in microseconds, 0 if a derived duration was not used yet
+     */
+    public int getBitMicros() {
+        return bitMicros;
+    }
+
+    /**
+     * Returns the payload rate of the last frame, framing and line coding excluded
+     *
+     * @return the payload bits per second or 0 if nothing was sent yet
+     */
+    public double getBitsPerSecond() {
+        long playedMicros = player.getPlayedMicros();
+        return playedMicros == 0 ? 0 : payloadBits * 1000000.0 / playedMicros;
+    }
+
+    /**
+     * Returns the mean timing error of the edges of the last frame, the jitter of their lateness.
+     * A constant lateness shifts the whole frame and does not disturb the receiver.
+     *
+     * @return the mean timing error in microseconds
+     */
+    public long getMeanTimingErrorMicros() {
+        return player.getJitterMicros();
+    }
+
+    /**
+     * Returns the mean time from the deadline of an edge of the last frame to its confirmation
+     *
+     * @return the mean lateness in microseconds
+     */
+    public long getMeanLatenessMicros() {
+        return player.getMeanLatenessMicros();
+    }
+
+    /**
+     * Returns the number of edges of the last frame which did not reach the light,
+     * e.g. because they were shorter than the latency of the camera thread and coalesced
+     *
+     * @return the number of dropped edges
+     */
+    public long getDroppedEdgeCount() {
+        return player.getDroppedEdgeCount();
+    }
+
+    /**
+     * Returns the largest timing error of the edges of the last frame,
+     * the largest shift of one edge against another
+     *
+     * @return the largest timing error in microseconds
+     */
+    public long getMaxTimingErrorMicros() {
+        return player.getLatenessSpreadMicros();
+    }
+
+    /**
+     * Returns the largest timing error the receiver tolerates, a quarter bit
+     *
+     * @return the tolerated timing error in microseconds
+     */
+    public long getToleratedTimingErrorMicros() {
+        return bitMicros / 4;
+    }
+}
@@ -49,9 +49,10 @@ public interface SimpleFlashLight {
     boolean isInitialized();
 
     /**
-     * Opens the camera device.
+     * Opens the camera device. Opening is done asynchronously,
+     * the listener is notified as soon as the device is opened.
      *
-     * @return true if the device was opened successfully
+     * @return true if opening the device was started successfully
      */
     boolean openCamera();
 
@@ -66,12 +67,13 @@ public interface SimpleFlashLight {
     /**
      * Returns the opened state of the device
      *
-     * @return true if the device is open and can be switched on and off
+     * @return true if the device is open or being opened and can be switched on and off
      */
     boolean isDeviceOpened();
 
     /**
      * switches the state of the flash. the camera device is needed to be opened.
+     * switching is done asynchronously, the listener is notified after the flash was switched.
      */
     void switchFlash();
 
@@ -86,10 +88,136 @@ public interface SimpleFlashLight {
     void turnOffFlash();
 
     /**
-     * Returns the flash-on state. this indicator may not be reliable.
+     * Switches the flash to the requested state without blocking.
+     * The listener is called once, when the flash state is confirmed by the camera
+     * or when the switch failed. the camera device is needed to be opened.
+     *
+     * @param on            the requested flash state
+     * @param timeoutMillis the time to wait for the confirmation
+     * @param listener      called on the main thread with the result, may be null
+     */
+    void setFlash(boolean on, long timeoutMillis, OnFlashResultListener listener);
+
+    /**
+     * Returns the flash-on state. this indicator may not be reliable,
+     * use setFlash to wait for a confirmed flash state.
      *
      * @return true if the flash is enabled.
      */
     boolean isFlashOn();
 
+    /**
+     * Returns the requested flash state. A switch is reflected immediately,
+     * before the flash itself has been switched. Rapid switches are coalesced
+     * into a single transition to the last requested state.
+     *
+     * @return true if the flash is requested to be on.
+     */
+    boolean isFlashRequested();
+
+    /**
+     * Returns the metrics of this flash light: latency histograms of opening, configuring
+     * and switching, and counters of failures, reopens and the flash-on time.
+     *
+     * @return the metrics, never null
+     */
+    TorchMetrics getMetrics();
+
+    /**
+     * Adds a listener for device and flash state changes.
+     * Changes are pushed as they happen, including torch changes made by the system
+     * or by other apps and the loss of the camera, so no polling is needed.
+     * A listener is added only once.
+     *
+     * @param listener the listener. must not be null.
+     */
+    void addOnStateChangedListener(OnStateChangedListener listener);
+
+    /**
+     * Removes a listener added by addOnStateChangedListener.
+     *
+     * @param listener the listener to remove
+     */
+    void removeOnStateChangedListener(OnStateChangedListener listener);
+
+    /**
+     * Marks the following switches as timed edges of a pattern, a transmission or a beat.
+     * Timed edges run the camera at a frame rate fast enough for their timing,
+     * otherwise the lowest frame rate saves power.
+     *
+     * @param timedEdges true while the switches follow a timeline
+     */
+    void setTimedEdges(boolean timedEdges);
+
+    /**
+     * Returns the longest time a timed edge waits for the next camera frame,
+     * e.g. to choose the bit duration of a transmission
+     *
+     * @return the frame interval in microseconds, 0 if the switches are not bound to frames
+     */
+    int getFrameIntervalMicros();
+
+    /**
+     * Listener for device and flash state changes.
+     */
+    interface OnStateChangedListener {
+
+        /**
+         * Called on the main thread after the device or the flash state changed.
+         *
+         * @param flashLight the flash light whose state changed
+         */
+        void onStateChanged(SimpleFlashLight flashLight);
+    }
+
+    /**
+     * Listener for the result of a confirmed switch.
+     */
+    interface OnFlashResultListener {
+
+        /**
+         * the camera did not confirm the flash state in time
+         */
+        int REASON_TIMEOUT = 1;
+
+        /**
+         * the camera could not be accessed
+         */
+        int REASON_CAMERA_ERROR = 2;
+
+        /**
+         * a later switch requested the opposite state
+         */
+        int REASON_SUPERSEDED = 3;
+
+        /**
+         * the camera device was closed before the confirmation
+         */
+        int REASON_CLOSED = 4;
+
+        /**
+         * the switch off was taken, but another client keeps the shared flash on
+         */
+        int REASON_CLAIMED = 5;
+
+        /**
+         * Called on the main thread when the camera confirmed the flash state.
+         *
+         * @param flashLight       the switched flash light
+         * @param on               the confirmed flash state
+         * @param confirmedAtNanos System.nanoTime() the confirmation arrived on the thread of the flash light,
+         *                         so latencies do not include the delay of the main thread
+         */
+        void onFlashConfirmed(SimpleFlashLight flashLight, boolean on, long confirmedAtNanos);
+
+        /**
+         * Called on the main thread when the switch failed.
+         *
+         * @param flashLight the flash light
+         * @param on         the requested flash state
+         * @param reason     one of the REASON constants
+         */
+        void onFlashFailed(SimpleFlashLight flashLight, boolean on, int reason);
+    }
+
 }
@@ -0,0 +1,177 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * SimpleFlashLightFactory chooses the SimpleFlashLight implementation
+ * which fits the platform best.
+ * <p/>
+ * Since marshmallow the flash is switched by the torch mode of the camera manager.
+ * Older platforms use a camera2 capture session.
+ * <p/>
+ * Optionally all flash units of the device are driven together by a MultiFlashLight.
+ * The user chooses it in the menu of the activity, the choice is kept in the preferences.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class SimpleFlashLightFactory {
+
+    private static final Logger logger = Logger.getLogger(SimpleFlashLightFactory.class.getSimpleName());
+
+    private static final String PREFERENCES_NAME = "flash_light";
+    private static final String KEY_ALL_FLASH_UNITS = "all_flash_units";
+
+    private static SimpleFlashLight allUnitsInstance;
+
+    private SimpleFlashLightFactory() {
+    }
+
+    /**
+     * Returns an instance of the best fitting SimpleFlashLight
+     *
+     * @param context any context, used to access the camera service and the capability cache
+     * @return Instance of a SimpleFlashLight or null if no suitable camera could be found
+     */
+    public static SimpleFlashLight getInstance(Context context) {
+        return getInstance(context, false);
+    }
+
+    /**
+     * Returns an instance of the best fitting SimpleFlashLight
+     *
+     * @param context       any context, used to access the camera service and the capability cache
+     * @param allFlashUnits true to drive all cameras with a flash at once,
+     *                      false to use the flash of the back camera only
+     * @return Instance of a SimpleFlashLight or null if no suitable camera could be found
+     */
+    public static synchronized SimpleFlashLight getInstance(Context context, boolean allFlashUnits) {
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        CameraCapabilities capabilities = CameraCapabilities.getInstance(context, cameraManager);
+
+        if (capabilities == null || !capabilities.isFlashAvailable()) {
+            return null;
+        }
+
+        SimpleFlashLight primary = isTorchModeSupported()
+                ? TorchFlashLight.getInstance(cameraManager, capabilities)
+                : SimpleFlashLightImpl.getInstance(cameraManager, capabilities);
+        if (!allFlashUnits || primary == null) {
+            return primary;
+        }
+
+        if (allUnitsInstance == null) {
+            allUnitsInstance = createAllUnits(cameraManager, capabilities, primary);
+        }
+        return allUnitsInstance;
+    }
+
+    /**
+     * Creates a flash light for every camera with a flash.
+     * The primary unit is shared with the single flash light, so both never compete for the camera.
+     *
+     * @return the primary unit itself if there is no further flash
+     */
+    private static SimpleFlashLight createAllUnits(CameraManager cameraManager,
+                                                   CameraCapabilities capabilities,
+                                                   SimpleFlashLight primary) {
+        String[] cameraIds = capabilities.getFlashCameraIds();
+        List<SimpleFlashLight> units = new ArrayList<>();
+        units.add(primary);
+
+        for (int i = 1; i < cameraIds.length; i++) {
+            if (isTorchModeSupported()) {
+                try {
+                    units.add(new TorchFlashLight(cameraManager, cameraIds[i]));
+                } catch (CameraAccessException e) {
+                    logger.log(WARNING, "Error while using flash of camera " + cameraIds[i], e);
+                }
+            } else {
+                // every unit keeps its own buffer on its own camera thread
+                units.add(new SimpleFlashLightImpl(new Camera2Backend(cameraManager, capabilities), cameraIds[i]));
+            }
+        }
+
+        if (units.size() == 1) {
+            return primary;
+        }
+        return new MultiFlashLight(units.toArray(new SimpleFlashLight[units.size()]));
+    }
+
+    /**
+     * Returns the choice of the user to drive all flash units at once
+     *
+     * @param context any context, used to access the preferences
+     * @return true if all flash units are to be used
+     */
+    public static boolean isAllFlashUnitsEnabled(Context context) {
+        return getPreferences(context).getBoolean(KEY_ALL_FLASH_UNITS, false);
+    }
+
+    /**
+     * Stores the choice of the user to drive all flash units at once
+     *
+     * @param context       any context, used to access the preferences
+     * @param allFlashUnits true to use all flash units
+     */
+    public static void setAllFlashUnitsEnabled(Context context, boolean allFlashUnits) {
+        getPreferences(context).edit()
+                .putBoolean(KEY_ALL_FLASH_UNITS, allFlashUnits)
+                .apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Checks if the platform supports switching the torch without a capture session
+     *
+     * @return true if the torch mode of the camera manager can be used
+     */
+    public static boolean isTorchModeSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+}
@@ -32,20 +32,15 @@ package de.nocnoc.clean.flashlight;
  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
  */
 
-import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
-import android.hardware.camera2.CaptureRequest;
-import android.util.Size;
-import android.view.Surface;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Semaphore;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,7 +50,23 @@ import static java.util.logging.Level.WARNING;
  * SimpleFlashLightImpl provides
  * easy access and functionality to camera flashlight.
  * <p/>
- * It currently only supports lollipops new camera2 based functions
+ * It currently only supports lollipops new camera2 based functions.
+ * The camera calls go through a CameraBackend, so the state handling can run against a simulator.
+ * <p/>
+ * All camera work is done on a dedicated camera thread.
+ * State changes are reported back on the main thread.
+ * <p/>
+ * The session runs through the states
+ * CLOSED -> OPENING -> CONFIGURING -> READY -> CLOSING -> CLOSED.
+ * Every transition is a compare-and-set, so no caller thread is ever blocked.
+ * <p/>
+ * While the flash is off, the session is released after an idle timeout.
+ * It is reopened on the next request to turn the flash on.
+ * <p/>
+ * A camera lost to another app or to an error is reacquired automatically.
+ * The reopen is retried with a bounded exponential backoff and started at once
+ * when the camera becomes available again. The requested flash state is kept meanwhile
+ * and restored by the recovered session.
  * <p/>
  *
  * @author nocnoc
@@ -67,184 +78,455 @@ public class SimpleFlashLightImpl implements SimpleFlashLight {
 
     private static SimpleFlashLight instance;
 
+    /**
+     * default time the session is kept open while the flash is off
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * States of the camera session
+     */
+    public enum SessionState {
+        /**
+         * no camera device is opened
+         */
+        CLOSED,
+        /**
+         * the camera device is being opened
+         */
+        OPENING,
+        /**
+         * the camera device is opened, the capture session is being configured
+         */
+        CONFIGURING,
+        /**
+         * the capture session is running and the flash can be switched
+         */
+        READY,
+        /**
+         * session and camera device are being closed
+         */
+        CLOSING
+    }
+
+    /**
+     * current session state. every transition started by a caller is a compare-and-set.
+     */
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.CLOSED);
+
+    /**
+     * requested flash state. applied as soon as the session is ready.
+     */
+    private final AtomicBoolean flashRequested = new AtomicBoolean(false);
+
+    /**
+     * set while an apply of the requested flash state is queued on the camera thread.
+     * further switches are coalesced into the queued apply.
+     */
+    private final AtomicBoolean applyPending = new AtomicBoolean(false);
+
+    /**
+     * set if the camera is to be opened again as soon as closing has finished
+     */
+    private final AtomicBoolean reopenAfterClose = new AtomicBoolean(false);
+
+    /**
+     * set if the session was released by the idle timeout and is to be reopened lazily
+     */
+    private final AtomicBoolean releasedWhenIdle = new AtomicBoolean(false);
+
+    /**
+     * set while a lost camera is reacquired. The flash light counts as opened meanwhile.
+     */
+    private final AtomicBoolean recovering = new AtomicBoolean(false);
+
+    /**
+     * System.nanoTime() the camera was lost at. only used on the camera thread.
+     */
+    private long recoveryStartedAtNanos;
+
+    /**
+     * delays between the reopen attempts of a recovery. only used on the camera thread.
+     */
+    private final Backoff recoveryBackoff = new Backoff();
+
+    /**
+     * true while the availability callback is registered. only used on the camera thread.
+     */
+    private boolean availabilityRegistered;
+
+    /**
+     * time the session is kept open while the flash is off. 0 disables the timeout.
+     */
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    /**
+     * true if the running open was started lazily after an idle release
+     */
+    private volatile boolean isReopening;
+
+    /**
+     * duration of the last open until the session was ready
+     */
+    private volatile long lastOpenMillis = -1;
+
+    /**
+     * duration of the last lazy reopen until the session was ready
+     */
+    private volatile long lastReopenMillis = -1;
+
+    /**
+     * latency histograms and counters
+     */
+    private final TorchMetrics metrics = new TorchMetrics();
+
+    /**
+     * System.nanoTime() of the running open
+     */
+    private volatile long openRequestedAtNanos;
+
+    /**
+     * System.nanoTime() the running session configuration was started
+     */
+    private volatile long configureStartedAtNanos;
+
+    /**
+     * System.nanoTime() the queued apply was requested
+     */
+    private volatile long applyRequestedAtNanos;
+
+    /**
+     * System.nanoTime() the switch waiting for its confirmation was requested, 0 if there is none.
+     * only used on the camera thread.
+     */
+    private long switchRequestedAtNanos;
+
     /**
      * flash switch state mode indicator.
      * The indicator is needed, for there is no way to request on sdk or hardware
      */
-    private boolean isFlashOn = false;
+    private volatile boolean isFlashOn = false;
 
     /**
-     * camera manager
+     * background thread for opening, configuring, switching and closing the camera.
+     * null if the camera work runs on a scheduler passed in.
      */
-    private CameraManager cameraManager;
+    private final HandlerThread cameraThread;
 
     /**
-     * device id from the used camera
+     * scheduler of the camera thread. all camera callbacks are delivered here.
      */
-    private String cameraID;
+    private final TaskScheduler cameraScheduler;
 
     /**
-     * camera device, while camera is opened.
-     * needed for closing actions
+     * executor of the main thread for state change notifications
      */
-    private CameraDevice cameraDevice;
+    private final Executor mainExecutor;
 
     /**
-     * single caption request builder.
-     * stored here for interaction between capture request and capture session callback.
+     * listeners to be notified on the main thread
      */
-    private CaptureRequest.Builder requestBuilder;
+    private final StateChangedListeners stateChangedListeners = new StateChangedListeners();
 
     /**
-     * whole camera caption session.
-     * stored for closing actions.
+     * switches waiting for the confirmation of the camera. only used on the camera thread.
+     */
+    private final FlashConfirmations confirmations;
+
+    /**
+     * flash state confirmed by the camera. only used on the camera thread.
+     */
+    private boolean confirmedFlashOn;
+
+    /**
+     * camera backend
+     */
+    private final CameraBackend backend;
+
+    /**
+     * device id from the used camera
      */
-    private CameraCaptureSession captureSession;
+    private final String cameraID;
 
     /**
-     * preventing the app from closing before the camera shut down
+     * camera device, while camera is opened.
+     * needed for closing actions. only used on the camera thread.
      */
-    private final Semaphore cameraOpenCloseLock = new Semaphore(1);
+    private CameraBackend.Device cameraDevice;
 
     /**
-     * Dummy Texture Buffer.
-     * It is a field, for the ability to free after use.
+     * whole camera caption session.
+     * stored for closing actions. only used on the camera thread.
      */
-    private SurfaceTexture dummyTexture;
+    private CameraBackend.Session captureSession;
 
     /**
      * Whole Capture session (repeating single event)
      */
-    private final CameraCaptureSession.StateCallback flashSessionCallback = new CameraCaptureSession.StateCallback() {
+    private final CameraBackend.SessionCallback flashSessionCallback = new CameraBackend.SessionCallback() {
+
+        public void onConfigured(CameraBackend.Session session) {
+            if (!state.compareAndSet(SessionState.CONFIGURING, SessionState.READY)) {
+                // closing was requested while configuring
+                session.close();
+                return;
+            }
+
+            metrics.getConfigureLatency().recordSince(configureStartedAtNanos);
+            if (recovering.compareAndSet(true, false)) {
+                // the requested flash state is restored right below
+                metrics.getRecoveryLatency().recordSince(recoveryStartedAtNanos);
+                stopRecoveryTask.run();
+            }
 
-        @Override
-        public void onConfigured(CameraCaptureSession session) {
             captureSession = session;
+            switchRequestedAtNanos = 0;
             try {
-                captureSession.setRepeatingRequest(requestBuilder.build(), null, null);
+                boolean on = flashRequested.get();
+                captureSession.setFlash(on);
+                isFlashOn = on;
+                metrics.recordFlash(on, System.nanoTime());
+                if (on) {
+                    TimeToLight.lightOn();
+                }
             } catch (CameraAccessException e) {
+                metrics.recordFailure();
                 logger.log(Level.WARNING, "Failed to setup flashlight", e);
             }
+
+            lastOpenMillis = (System.nanoTime() - openRequestedAtNanos) / 1000000;
+            if (isReopening) {
+                lastReopenMillis = lastOpenMillis;
+            }
+            scheduleIdleRelease();
+            notifyStateChanged();
         }
 
-        @Override
-        public void onConfigureFailed(CameraCaptureSession session) {
+        public void onFlashConfirmed(CameraBackend.Session session, boolean on) {
+            if (session != captureSession) {
+                return;
+            }
+            long now = System.nanoTime();
+            // a switch takes until the camera confirms it, not until the request is handed over
+            if (switchRequestedAtNanos != 0) {
+                metrics.getToggleLatency().record(now - switchRequestedAtNanos);
+                switchRequestedAtNanos = 0;
+            }
+            confirmedFlashOn = on;
+            confirmations.confirm(on, now);
+        }
+
+        public void onConfigureFailed() {
+            metrics.recordFailure();
             logger.log(Level.WARNING, "Failed to setup flashlight");
+            if (state.compareAndSet(SessionState.CONFIGURING, SessionState.CLOSING)) {
+                closeCameraTask.run();
+            }
         }
     };
 
     /**
      * Single capture event (one flash)
      */
-    private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
-        @Override
-        public void onOpened(CameraDevice camera) {
+    private final CameraBackend.DeviceCallback stateCallback = new CameraBackend.DeviceCallback() {
+
+        public void onOpened(CameraBackend.Device camera) {
 
             cameraDevice = camera;
+            metrics.getOpenLatency().recordSince(openRequestedAtNanos);
+            configureStartedAtNanos = System.nanoTime();
+
+            if (!state.compareAndSet(SessionState.OPENING, SessionState.CONFIGURING)) {
+                // closing was requested while opening
+                closeCameraTask.run();
+                return;
+            }
 
             try {
-                // Create new builder to manage all settings manually
-                requestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-
-                // set auto focus to auto as prerequisite for the flash
-                requestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
-
-                // set flash mode to torch
-                // -> disabled by default. using switch button
-                //requestBuilder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_TORCH);
-
-                // add a dummy buffer
-                dummyTexture = new SurfaceTexture(1);
-                Size minSize = getSmallestTextureBuffer(cameraID);
-                dummyTexture.setDefaultBufferSize(minSize.getWidth(), minSize.getHeight());
-                List<Surface> targetList = new ArrayList<>();
-                Surface dummySurface = new Surface(dummyTexture);
-                targetList.add(dummySurface);
-                requestBuilder.addTarget(dummySurface);
-
-                // start session
-                cameraDevice.createCaptureSession(targetList, flashSessionCallback, null);
+                cameraDevice.createFlashSession(flashSessionCallback, cameraScheduler);
             } catch (CameraAccessException e) {
+                metrics.recordFailure();
                 logger.log(WARNING, "Failed to use camera", e);
+                if (state.compareAndSet(SessionState.CONFIGURING, SessionState.CLOSING)) {
+                    closeCameraTask.run();
+                }
             }
         }
 
-        @Override
-        public void onClosed(CameraDevice camera) {
-            dummyTexture.release();
+        public void onClosed(CameraBackend.Device camera) {
+            isFlashOn = false;
+            confirmedFlashOn = false;
+            metrics.recordFlash(false, System.nanoTime());
+
+            // an idle release keeps the buffers for the reopen,
+            // an explicit close frees them as soon as no device uses them any more.
+            // a reopen requested meanwhile creates them again.
+            if (!reopenAfterClose.get() && !releasedWhenIdle.get() && !recovering.get()) {
+                backend.release();
+            }
+
+            state.set(SessionState.CLOSED);
+            notifyStateChanged();
+
+            // a closed device has the flash turned off
+            boolean reopen = reopenAfterClose.getAndSet(false);
+            confirmations.confirm(false);
+            if (reopen) {
+                openCamera();
+            } else if (recovering.get()) {
+                scheduleRecovery();
+            } else {
+                confirmations.fail(true, OnFlashResultListener.REASON_CLOSED);
+            }
         }
 
-        @Override
-        public void onDisconnected(CameraDevice camera) {
-            // do nothing. closing device would lead into error at this point
+        public void onDisconnected(CameraBackend.Device camera) {
+            metrics.recordFailure();
+            cameraLost(camera);
         }
 
-        @Override
-        public void onError(CameraDevice camera, int error) {
-            // do nothing. closing device would lead into error at this point
+        public void onError(CameraBackend.Device camera, int error) {
+            metrics.recordFailure();
+            logger.log(WARNING, "Camera error " + error);
+            cameraLost(camera);
         }
     };
 
+    /**
+     * Reports the camera of the recovery as available again. Runs on the camera thread.
+     */
+    private final CameraBackend.AvailabilityCallback availabilityCallback = new CameraBackend.AvailabilityCallback() {
+        public void onCameraAvailable(String cameraId) {
+            if (cameraID.equals(cameraId) && recovering.get()) {
+                // no need to wait for the backoff any more
+                cameraScheduler.cancel(recoverTask);
+                recoverTask.run();
+            }
+        }
+    };
 
-    private SimpleFlashLightImpl(CameraManager cameraManager) throws CameraAccessException {
+    /**
+     * The camera was taken by another app or failed, so its flash is dark.
+     * The lost device is closed and recovered, unless it was being closed anyway.
+     * The requested flash state is kept for the recovered session. Runs on the camera thread.
+     */
+    private void cameraLost(CameraBackend.Device camera) {
+        boolean wasOn = isFlashOn;
+        isFlashOn = false;
+        confirmedFlashOn = false;
+        confirmations.fail(true, OnFlashResultListener.REASON_CAMERA_ERROR);
+        if (wasOn) {
+            metrics.recordFlash(false, System.nanoTime());
+        }
 
-        if (cameraManager == null) {
-            throw new IllegalArgumentException("cameraManager must not be null");
+        while (true) {
+            SessionState current = state.get();
+            if (current == SessionState.CLOSED || current == SessionState.CLOSING) {
+                // closing was requested anyway, its close callback follows
+                break;
+            }
+            if (state.compareAndSet(current, SessionState.CLOSING)) {
+                if (recovering.compareAndSet(false, true)) {
+                    recoveryStartedAtNanos = System.nanoTime();
+                    recoveryBackoff.reset();
+                }
+                registerAvailability();
+                // the device may be lost before it was reported as opened
+                if (cameraDevice == null) {
+                    cameraDevice = camera;
+                }
+                closeCameraTask.run();
+                break;
+            }
         }
+        notifyStateChanged();
+    }
 
-        this.cameraManager = cameraManager;
-        this.cameraID = getCameraId(cameraManager);
+    /**
+     * Schedules the next reopen attempt of the recovery. Runs on the camera thread.
+     */
+    private void scheduleRecovery() {
+        cameraScheduler.cancel(recoverTask);
+        cameraScheduler.schedule(recoverTask, recoveryBackoff.nextDelayMillis());
+    }
 
-        if (this.cameraID == null) {
-            throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED, "No suitable camera found");
+    private void registerAvailability() {
+        if (!availabilityRegistered) {
+            availabilityRegistered = true;
+            backend.registerAvailabilityCallback(availabilityCallback, cameraScheduler);
         }
     }
 
+
+    /**
+     * Creates a flash light on a camera backend
+     *
+     * @param backend  the camera backend. must not be null.
+     * @param cameraID the id of the camera with the flash. must not be null.
+     */
+    SimpleFlashLightImpl(CameraBackend backend, String cameraID) {
+        this(backend, cameraID, null, null);
+    }
+
     /**
-     * Returns an instance of a SimpleFlashLight
+     * Creates a flash light which runs its camera work on a scheduler passed in,
+     * e.g. to run against the simulator in a plain JVM
      *
-     * @param cameraManager The camera manager of this device. must not be null.
-     * @return Instance of a SimpleFlashLight or null if no suitable camera could be found
+     * @param backend         the camera backend. must not be null.
+     * @param cameraID        the id of the camera with the flash. must not be null.
+     * @param cameraScheduler runs the camera work one task after another, null for an own camera thread
+     * @param mainExecutor    delivers the notifications, null for the main thread
      */
-    public static SimpleFlashLight getInstance(CameraManager cameraManager) {
-        if (instance != null) {
-            return instance;
+    SimpleFlashLightImpl(CameraBackend backend, String cameraID,
+                         TaskScheduler cameraScheduler, Executor mainExecutor) {
+
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        if (cameraID == null) {
+            throw new IllegalArgumentException("cameraID must not be null");
+        }
+
+        this.backend = backend;
+        this.cameraID = cameraID;
+
+        if (cameraScheduler == null) {
+            this.cameraThread = new HandlerThread("FlashLightCamera");
+            this.cameraThread.start();
+            this.cameraScheduler = new HandlerScheduler(new Handler(cameraThread.getLooper()));
         } else {
-            try {
-                instance = new SimpleFlashLightImpl(cameraManager);
-                return instance;
-            } catch (CameraAccessException e) {
-                logger.log(WARNING, "Error while finding suitable camera device", e);
-                return null;
-            }
+            this.cameraThread = null;
+            this.cameraScheduler = cameraScheduler;
         }
+        this.mainExecutor = mainExecutor != null
+                ? mainExecutor : new HandlerScheduler(new Handler(Looper.getMainLooper()));
+        this.confirmations = new FlashConfirmations(this, this.cameraScheduler, this.mainExecutor);
     }
 
-
     /**
-     * Searches the camera devices for the back camera
-     * and assures that it is one with a flashlight.
+     * Returns an instance of a SimpleFlashLight
      *
-     * @return the id of the back camera
-     * @throws CameraAccessException
+     * @param cameraManager The camera manager of this device. must not be null.
+     * @param capabilities  The capabilities of the cameras. must not be null.
+     * @return Instance of a SimpleFlashLight or null if no suitable camera could be found
      */
-    private String getCameraId(CameraManager cameraManager) throws CameraAccessException {
-        String[] ids = cameraManager.getCameraIdList();
-        for (String id : ids) {
-            CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(id);
-            boolean isFlashAvailable = cameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-            boolean isBackCamera = CameraCharacteristics.LENS_FACING_BACK == cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
-
-            if (isFlashAvailable && isBackCamera) {
-                return id;
+    public static SimpleFlashLight getInstance(CameraManager cameraManager, CameraCapabilities capabilities) {
+        if (instance != null) {
+            return instance;
+        } else {
+            if (capabilities == null || capabilities.getCameraId() == null) {
+                logger.log(WARNING, "Error while finding suitable camera device");
+                return null;
             }
+            instance = new SimpleFlashLightImpl(
+                    new Camera2Backend(cameraManager, capabilities), capabilities.getCameraId());
+            return instance;
         }
-        return null;
     }
 
 
     public boolean isInitialized() {
-        return cameraManager != null && cameraID != null;
+        return backend != null && cameraID != null;
     }
 
 
@@ -253,23 +535,34 @@ public class SimpleFlashLightImpl implements SimpleFlashLight {
             throw new IllegalStateException("Error: Missing initialization!");
         }
 
-        boolean success = false;
-
-        try {
-            cameraOpenCloseLock.acquire();
-            cameraManager.openCamera(cameraID, stateCallback, null);
-            success = true;
-        } catch (InterruptedException e) {
-            logger.log(Level.WARNING, "Interrupted while opening camera");
-            success = false;
-        } catch (CameraAccessException e) {
-            logger.log(Level.WARNING, "Failed to access camera");
-            success = false;
-        } finally {
-            cameraOpenCloseLock.release();
+        while (true) {
+            SessionState current = state.get();
+            switch (current) {
+                case CLOSED:
+                    if (state.compareAndSet(SessionState.CLOSED, SessionState.OPENING)) {
+                        reopenAfterClose.set(false);
+                        isReopening = releasedWhenIdle.getAndSet(false);
+                        if (isReopening) {
+                            metrics.recordReopen();
+                        }
+                        openRequestedAtNanos = System.nanoTime();
+                        notifyStateChanged();
+                        cameraScheduler.execute(openCameraTask);
+                        return true;
+                    }
+                    break;
+                case CLOSING:
+                    // open again as soon as the running close has finished
+                    reopenAfterClose.set(true);
+                    if (state.get() == SessionState.CLOSING) {
+                        return true;
+                    }
+                    break;
+                default:
+                    // already opened or on the way
+                    return true;
+            }
         }
-
-        return success;
     }
 
 
@@ -278,85 +571,221 @@ public class SimpleFlashLightImpl implements SimpleFlashLight {
             throw new IllegalStateException("Error: Missing initialization!");
         }
 
-        boolean success = false;
+        reopenAfterClose.set(false);
+        releasedWhenIdle.set(false);
+        flashRequested.set(false);
+        cameraScheduler.cancel(idleReleaseTask);
+        if (recovering.getAndSet(false)) {
+            cameraScheduler.execute(stopRecoveryTask);
+        }
 
-        try {
-            cameraOpenCloseLock.acquire();
-            if (captureSession != null) {
-                captureSession.close();
-                captureSession = null;
+        while (true) {
+            SessionState current = state.get();
+            switch (current) {
+                case CLOSED:
+                case CLOSING:
+                    // an idle release may have been running
+                    releasedWhenIdle.set(false);
+                    // the buffers kept by an idle release are freed now
+                    if (current == SessionState.CLOSED) {
+                        cameraScheduler.execute(releaseBuffersTask);
+                    }
+                    return true;
+                default:
+                    if (state.compareAndSet(current, SessionState.CLOSING)) {
+                        notifyStateChanged();
+                        cameraScheduler.execute(closeCameraTask);
+                        return true;
+                    }
             }
-            if (cameraDevice != null) {
-                cameraDevice.close();
-                cameraDevice = null;
-            }
-
-            success = true;
-        } catch (InterruptedException e) {
-            logger.log(Level.WARNING, "Interrupted while closing camera");
-            success = false;
-        } finally {
-            cameraOpenCloseLock.release();
         }
+    }
 
-        return success;
+    /**
+     * Stops the camera thread, e.g. at the end of a test. The camera should be closed first,
+     * the flash light must not be used afterwards. A scheduler passed in is left to its owner.
+     */
+    void quit() {
+        if (cameraThread != null) {
+            cameraThread.quitSafely();
+        }
     }
 
+    /**
+     * Returns the device opened state.
+     * Switching is already accepted while the session is being opened,
+     * the requested flash state is applied as soon as the session is ready.
+     * A session released by the idle timeout counts as opened, for it is reopened lazily.
+     * So does a lost camera which is being recovered.
+     *
+     * @return true if the device is opened or being opened
+     */
     public boolean isDeviceOpened() {
-        return requestBuilder != null && captureSession != null;
+        SessionState current = state.get();
+        return current == SessionState.OPENING
+                || current == SessionState.CONFIGURING
+                || current == SessionState.READY
+                || releasedWhenIdle.get()
+                || recovering.get();
+    }
+
+    /**
+     * Returns the exact state of the camera session.
+     *
+     * @return the current session state
+     */
+    public SessionState getSessionState() {
+        return state.get();
     }
 
+    /**
+     * Enables stopping the repeating request before switching the flash.
+     * Only needed for devices which fail to replace a running repeating request.
+     *
+     * @param restartRepeatingOnSwitch true to stop the old request before starting the new one
+     */
+    public void setRestartRepeatingOnSwitch(boolean restartRepeatingOnSwitch) {
+        if (backend instanceof Camera2Backend) {
+            ((Camera2Backend) backend).setRestartRepeatingOnSwitch(restartRepeatingOnSwitch);
+        }
+    }
 
-    public void switchFlash() {
-        if (isFlashOn()) {
-            turnOffFlash();
-        } else {
-            turnOnFlash();
+    /**
+     * Enables the low-power request profile of the camera2 session. Takes effect with the next session.
+     *
+     * @param lowPowerProfileEnabled false to use the plain preview template with auto exposure
+     */
+    public void setLowPowerProfileEnabled(boolean lowPowerProfileEnabled) {
+        if (backend instanceof Camera2Backend) {
+            ((Camera2Backend) backend).setLowPowerProfileEnabled(lowPowerProfileEnabled);
         }
     }
 
+    /**
+     * Selects the frame rate of the low-power profile for timed edges,
+     * the running session is switched to it right away.
+     *
+     * @param timedEdges true while the switches follow a timeline
+     */
+    public void setTimedEdges(boolean timedEdges) {
+        if (backend instanceof Camera2Backend) {
+            ((Camera2Backend) backend).setTimedEdges(timedEdges);
+            // the running request keeps its frame rate until it is resubmitted
+            cameraScheduler.execute(resubmitFlashTask);
+        }
+    }
 
-    public void turnOnFlash() {
+    /**
+     * Returns the frame interval of timed switches of the camera2 session
+     *
+     * @return the frame interval in microseconds, 0 for a backend without frames
+     */
+    public int getFrameIntervalMicros() {
+        if (backend instanceof Camera2Backend) {
+            return ((Camera2Backend) backend).getTimedFrameIntervalMicros();
+        }
+        return 0;
+    }
 
+    /**
+     * Returns how well the camera followed the low-power profile, checked by the capture results
+     *
+     * @return the number of profile settings the camera did not apply in the last verified session,
+     * -1 if no session was verified yet or the backend has no profile
+     */
+    public int getProfileMismatchCount() {
+        if (backend instanceof Camera2Backend) {
+            return ((Camera2Backend) backend).getProfileMismatchCount();
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the time the session is kept open while the flash is off.
+     * The session is reopened on the next request to turn the flash on.
+     *
+     * @param idleTimeoutMillis the timeout in milliseconds. 0 keeps the session open.
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        cameraScheduler.execute(scheduleIdleReleaseTask);
+    }
+
+    /**
+     * Returns the time the session is kept open while the flash is off.
+     *
+     * @return the timeout in milliseconds. 0 if the session is kept open.
+     */
+    public long getIdleTimeout() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Returns the time the last open took until the session was ready.
+     *
+     * @return the duration in milliseconds or -1 if the session was never opened
+     */
+    public long getLastOpenMillis() {
+        return lastOpenMillis;
+    }
+
+    /**
+     * Returns the time the last lazy reopen after an idle release took until the session was ready.
+     *
+     * @return the duration in milliseconds or -1 if the session was never reopened
+     */
+    public long getLastReopenMillis() {
+        return lastReopenMillis;
+    }
+
+
+    public void switchFlash() {
         if (!isDeviceOpened()) {
             throw new IllegalStateException("Error: Device is not opened!");
         }
 
-        if (!isFlashOn()) {
-            try {
-                //stopping old request (restarting is necessary to avoid memory issues)
-                captureSession.stopRepeating();
+        boolean requested;
+        do {
+            requested = flashRequested.get();
+        } while (!flashRequested.compareAndSet(requested, !requested));
 
-                // start new request
-                requestBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
-                captureSession.setRepeatingRequest(requestBuilder.build(), null, null);
-                this.isFlashOn = true;
+        requestFlash(!requested, true);
+    }
 
-            } catch (CameraAccessException e) {
-                logger.log(WARNING, "Failed to enable flash", e);
-            }
-        }
 
+    public void turnOnFlash() {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
+        requestFlash(true, !flashRequested.getAndSet(true));
     }
 
     public void turnOffFlash() {
         if (!isDeviceOpened()) {
             throw new IllegalStateException("Error: Device is not opened!");
         }
+        requestFlash(false, flashRequested.getAndSet(false));
+    }
 
-        if (isFlashOn) {
-            try {
-                //stopping old request (restarting is necessary to avoid memory issues)
-                captureSession.stopRepeating();
-
-                // start new request
-                requestBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
-                captureSession.setRepeatingRequest(requestBuilder.build(), null, null);
-                this.isFlashOn = false;
+    public void setFlash(final boolean on, final long timeoutMillis, final OnFlashResultListener listener) {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
 
-            } catch (CameraAccessException e) {
-                logger.log(WARNING, "Failed to disable flash", e);
+        // queued before the apply, so the confirmation cannot be missed
+        cameraScheduler.execute(new Runnable() {
+            public void run() {
+                confirmations.add(on, timeoutMillis, listener);
+                if (confirmedFlashOn == on && isFlashOn == on && state.get() == SessionState.READY) {
+                    confirmations.confirm(on);
+                }
             }
+        });
+
+        if (on) {
+            turnOnFlash();
+        } else {
+            turnOffFlash();
         }
     }
 
@@ -364,34 +793,242 @@ public class SimpleFlashLightImpl implements SimpleFlashLight {
         return isFlashOn;
     }
 
+    public boolean isFlashRequested() {
+        return flashRequested.get();
+    }
+
+    public TorchMetrics getMetrics() {
+        return metrics;
+    }
 
     /**
-     * Evaluates the smallest texture buffer size, for we do not want to save it,
-     * but only need the flashlight.
+     * Applies the requested flash state.
+     * A session released by the idle timeout is reopened to turn the flash on.
+     * While an apply is queued, the request is coalesced into it.
      *
-     * @return size of the smallest needed texture buffer size
+     * @param on      the requested flash state
+     * @param changed true if the request differs from the previous one
      */
-    private Size getSmallestTextureBuffer(String cameraID) throws CameraAccessException {
+    private void requestFlash(boolean on, boolean changed) {
+        if (on && releasedWhenIdle.get()) {
+            openCamera();
+        }
+        if (applyPending.compareAndSet(false, true)) {
+            applyRequestedAtNanos = System.nanoTime();
+            cameraScheduler.execute(applyFlashTask);
+        }
+        if (changed) {
+            notifyStateChanged();
+        }
+    }
 
-        // check which available output sizes are compatible with SurfaceTexture
-        Size[] outputSizes = cameraManager.getCameraCharacteristics(cameraID)
-                .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)
-                .getOutputSizes(SurfaceTexture.class);
+    public void addOnStateChangedListener(OnStateChangedListener listener) {
+        stateChangedListeners.add(listener);
+    }
 
-        // assure that there is any compatibility
-        if (outputSizes == null || outputSizes.length == 0) {
-            throw new IllegalStateException(
-                    "Camera " + cameraID + "does not support any output size.");
+
+    public void removeOnStateChangedListener(OnStateChangedListener listener) {
+        stateChangedListeners.remove(listener);
+    }
+
+    /**
+     * Posts a state change notification to the main thread.
+     */
+    private void notifyStateChanged() {
+        mainExecutor.execute(notifyStateChangedTask);
+    }
+
+    /**
+     * Delivers the state change to the listener. Runs on the main thread.
+     */
+    private final Runnable notifyStateChangedTask = new Runnable() {
+        public void run() {
+            OnStateChangedListener[] listeners = stateChangedListeners.get();
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onStateChanged(SimpleFlashLightImpl.this);
+            }
+        }
+    };
+
+    /**
+     * Opens the camera device. Runs on the camera thread.
+     */
+    private final Runnable openCameraTask = new Runnable() {
+        public void run() {
+            try {
+                backend.openCamera(cameraID, stateCallback, cameraScheduler);
+            } catch (CameraAccessException e) {
+                metrics.recordFailure();
+                logger.log(Level.WARNING, "Failed to access camera", e);
+                // no device callback will follow, so the session is closed right here
+                if (state.compareAndSet(SessionState.OPENING, SessionState.CLOSED)
+                        || state.compareAndSet(SessionState.CLOSING, SessionState.CLOSED)) {
+                    notifyStateChanged();
+                    if (recovering.get()) {
+                        scheduleRecovery();
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Closes session and camera device. Runs on the camera thread.
+     * <p/>
+     * If the device is not opened yet, it is closed by the open callback.
+     * The state becomes CLOSED in the close callback of the device.
+     */
+    private final Runnable closeCameraTask = new Runnable() {
+        public void run() {
+            if (captureSession != null) {
+                captureSession.close();
+                captureSession = null;
+            }
+            if (cameraDevice != null) {
+                cameraDevice.close();
+                cameraDevice = null;
+            }
+        }
+    };
+
+    /**
+     * Frees the buffers of the backend, if no device is opened meanwhile. Runs on the camera thread.
+     */
+    private final Runnable releaseBuffersTask = new Runnable() {
+        public void run() {
+            if (state.get() == SessionState.CLOSED && !releasedWhenIdle.get() && !recovering.get()) {
+                backend.release();
+            }
+        }
+    };
+
+    /**
+     * Reopens the lost camera. Runs on the camera thread.
+     */
+    private final Runnable recoverTask = new Runnable() {
+        public void run() {
+            if (!recovering.get() || !state.compareAndSet(SessionState.CLOSED, SessionState.OPENING)) {
+                return;
+            }
+            // closeCamera() stops the recovery before it reads the state
+            if (!recovering.get() && state.compareAndSet(SessionState.OPENING, SessionState.CLOSED)) {
+                return;
+            }
+            metrics.recordReopen();
+            isReopening = false;
+            openRequestedAtNanos = System.nanoTime();
+            notifyStateChanged();
+            openCameraTask.run();
         }
+    };
 
-        // search for the smallest size to safe memory
-        Size chosen = outputSizes[0];
-        for (Size s : outputSizes) {
-            if (chosen.getWidth() >= s.getWidth() && chosen.getHeight() >= s.getHeight()) {
-                chosen = s;
+    /**
+     * Ends the recovery, it succeeded or the camera is closed. Runs on the camera thread.
+     */
+    private final Runnable stopRecoveryTask = new Runnable() {
+        public void run() {
+            cameraScheduler.cancel(recoverTask);
+            recoveryBackoff.reset();
+            if (availabilityRegistered) {
+                availabilityRegistered = false;
+                backend.unregisterAvailabilityCallback(availabilityCallback);
             }
         }
+    };
 
-        return chosen;
+    /**
+     * Releases the session, if the flash is still off. Runs on the camera thread.
+     */
+    private final Runnable idleReleaseTask = new Runnable() {
+        public void run() {
+            if (flashRequested.get() || isFlashOn) {
+                return;
+            }
+            releasedWhenIdle.set(true);
+            if (state.compareAndSet(SessionState.READY, SessionState.CLOSING)) {
+                closeCameraTask.run();
+                notifyStateChanged();
+
+                // the flash was requested while releasing
+                if (flashRequested.get()) {
+                    openCamera();
+                }
+            } else {
+                releasedWhenIdle.set(false);
+            }
+        }
+    };
+
+    /**
+     * Reschedules the idle release. Runs on the camera thread.
+     */
+    private final Runnable scheduleIdleReleaseTask = new Runnable() {
+        public void run() {
+            scheduleIdleRelease();
+        }
+    };
+
+    /**
+     * Starts the idle timeout while the flash is off, stops it while the flash is on.
+     * Runs on the camera thread.
+     */
+    private void scheduleIdleRelease() {
+        cameraScheduler.cancel(idleReleaseTask);
+        long timeout = idleTimeoutMillis;
+        if (timeout > 0 && !isFlashOn && state.get() == SessionState.READY) {
+            cameraScheduler.schedule(idleReleaseTask, timeout);
+        }
     }
+
+    /**
+     * Resubmits the current flash state with the selected frame rate. Runs on the camera thread.
+     */
+    private final Runnable resubmitFlashTask = new Runnable() {
+        public void run() {
+            if (state.get() != SessionState.READY || captureSession == null) {
+                return;
+            }
+            try {
+                captureSession.setFlash(isFlashOn);
+            } catch (CameraAccessException e) {
+                logger.log(WARNING, "Failed to change the frame rate", e);
+            }
+        }
+    };
+
+    /**
+     * Switches the running session to the requested flash state. Runs on the camera thread.
+     * <p/>
+     * While the session is not ready, the request is kept and applied on configuration.
+     */
+    private final Runnable applyFlashTask = new Runnable() {
+        public void run() {
+            long requestedAt = applyRequestedAtNanos;
+            applyPending.set(false);
+            if (state.get() != SessionState.READY || captureSession == null) {
+                return;
+            }
+
+            boolean on = flashRequested.get();
+            if (on == isFlashOn) {
+                return;
+            }
+
+            try {
+                captureSession.setFlash(on);
+                isFlashOn = on;
+                switchRequestedAtNanos = requestedAt;
+                metrics.recordFlash(on, System.nanoTime());
+                if (on) {
+                    TimeToLight.lightOn();
+                }
+                scheduleIdleRelease();
+                notifyStateChanged();
+            } catch (CameraAccessException e) {
+                metrics.recordFailure();
+                confirmations.fail(on, OnFlashResultListener.REASON_CAMERA_ERROR);
+                logger.log(WARNING, on ? "Failed to enable flash" : "Failed to disable flash", e);
+            }
+        }
+    };
 }
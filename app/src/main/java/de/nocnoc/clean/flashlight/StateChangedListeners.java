@@ -0,0 +1,104 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * StateChangedListeners holds the state listeners of a flash light.
+ * <p/>
+ * Adding and removing copy the array, so a notification reads a snapshot
+ * without locking or allocating. Listeners change rarely, notifications are frequent.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class StateChangedListeners {
+
+    private static final SimpleFlashLight.OnStateChangedListener[] NONE =
+            new SimpleFlashLight.OnStateChangedListener[0];
+
+    private volatile SimpleFlashLight.OnStateChangedListener[] listeners = NONE;
+
+    /**
+     * Adds a listener, if it is not added yet
+     *
+     * @param listener the listener. must not be null.
+     */
+    synchronized void add(SimpleFlashLight.OnStateChangedListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        if (indexOf(listener) >= 0) {
+            return;
+        }
+        SimpleFlashLight.OnStateChangedListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+
+    /**
+     * Removes a listener
+     *
+     * @param listener the listener to remove
+     */
+    synchronized void remove(SimpleFlashLight.OnStateChangedListener listener) {
+        int index = indexOf(listener);
+        if (index < 0) {
+            return;
+        }
+        SimpleFlashLight.OnStateChangedListener[] removed =
+                new SimpleFlashLight.OnStateChangedListener[listeners.length - 1];
+        System.arraycopy(listeners, 0, removed, 0, index);
+        System.arraycopy(listeners, index + 1, removed, index, removed.length - index);
+        listeners = removed;
+    }
+
+    /**
+     * Returns the current listeners. The array must not be modified.
+     *
+     * @return the listeners, never null
+     */
+    SimpleFlashLight.OnStateChangedListener[] get() {
+        return listeners;
+    }
+
+    private int indexOf(SimpleFlashLight.OnStateChangedListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,63 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.Executor;
+
+/**
+ * TaskScheduler runs the tasks of a flash light one after another on the thread of the flash light,
+ * at once or after a delay.
+ * <p/>
+ * On the device the tasks are posted to a Handler, see HandlerScheduler. The flash light
+ * only depends on this interface, so it also runs against the simulator in a plain JVM.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+interface TaskScheduler extends Executor {
+
+    /**
+     * Runs a task after a delay
+     *
+     * @param task        the task to run
+     * @param delayMillis the delay in milliseconds
+     */
+    void schedule(Runnable task, long delayMillis);
+
+    /**
+     * Removes all pending runs of a task, like Handler.removeCallbacks
+     *
+     * @param task the task to remove
+     */
+    void cancel(Runnable task);
+}
@@ -0,0 +1,154 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.SystemClock;
+
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+
+/**
+ * TimeToLight measures the time from an entry point (launch, activity, widget) until the flash is lit.
+ * <p/>
+ * An entry point marks the start of a request to turn the light on, the SimpleFlashLight
+ * implementations report the light. A request to turn it off cancels the measurement.
+ * The launch path starts at the creation of the activity and ends with the first light,
+ * further taps in the activity are measured from the tap.
+ * The measurement is logged and kept as the last value of the entry point.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class TimeToLight {
+
+    private static final Logger logger = Logger.getLogger(TimeToLight.class.getSimpleName());
+
+    /**
+     * entry point of the running measurement or null if there is none
+     */
+    private static volatile String entryPoint;
+
+    /**
+     * start of the running measurement in elapsed realtime milliseconds
+     */
+    private static volatile long startedAt;
+
+    /**
+     * last measured time of the launch path
+     */
+    private static volatile long lastLaunchMillis = -1;
+
+    /**
+     * last measured time of the activity tap path
+     */
+    private static volatile long lastActivityMillis = -1;
+
+    /**
+     * last measured time of the widget path
+     */
+    private static volatile long lastWidgetMillis = -1;
+
+    static final String LAUNCH = "launch";
+    static final String ACTIVITY = "activity";
+    static final String WIDGET = "widget";
+
+    private TimeToLight() {
+    }
+
+    /**
+     * Starts a measurement of a request to turn the light on. A running measurement is replaced.
+     *
+     * @param entryPoint LAUNCH, ACTIVITY or WIDGET
+     * @param startedAt  the start in elapsed realtime milliseconds, e.g. of the launch
+     */
+    static void start(String entryPoint, long startedAt) {
+        TimeToLight.startedAt = startedAt;
+        TimeToLight.entryPoint = entryPoint;
+    }
+
+    /**
+     * Cancels the running measurement, e.g. on a request to turn the light off
+     */
+    static void cancel() {
+        entryPoint = null;
+    }
+
+    /**
+     * Finishes the running measurement. Called by the implementations when the flash was turned on.
+     */
+    static void lightOn() {
+        String current = entryPoint;
+        if (current == null) {
+            return;
+        }
+        entryPoint = null;
+
+        long millis = SystemClock.elapsedRealtime() - startedAt;
+        if (WIDGET.equals(current)) {
+            lastWidgetMillis = millis;
+        } else if (LAUNCH.equals(current)) {
+            lastLaunchMillis = millis;
+        } else {
+            lastActivityMillis = millis;
+        }
+        logger.log(INFO, "Time to light from " + current + ": " + millis + " ms");
+    }
+
+    /**
+     * Returns the last time to light from the launch of the activity
+     *
+     * @return the duration in milliseconds or -1 if there was no measurement
+     */
+    static long getLastLaunchMillis() {
+        return lastLaunchMillis;
+    }
+
+    /**
+     * Returns the last time to light from a tap in the activity
+     *
+     * @return the duration in milliseconds or -1 if there was no measurement
+     */
+    static long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    /**
+     * Returns the last time to light from a tap on the widget
+     *
+     * @return the duration in milliseconds or -1 if there was no measurement
+     */
+    static long getLastWidgetMillis() {
+        return lastWidgetMillis;
+    }
+}
@@ -0,0 +1,541 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * TorchFlashLight switches the flash by the torch mode of the camera manager.
+ * <p/>
+ * No camera device, capture session or buffer is needed,
+ * so the flash is switched without any camera-open latency.
+ * It is available since marshmallow.
+ * <p/>
+ * When another app takes the camera, the torch becomes unavailable. The requested flash state
+ * is kept and restored as soon as the torch callback reports the torch as available again.
+ * A failing restore is retried with a bounded exponential backoff.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class TorchFlashLight implements SimpleFlashLight {
+
+    private static final Logger logger = Logger.getLogger(TorchFlashLight.class.getSimpleName());
+
+    private static SimpleFlashLight instance;
+
+    /**
+     * latency histograms and counters
+     */
+    private final TorchMetrics metrics = new TorchMetrics();
+
+    /**
+     * System.nanoTime() of the switch waiting for the torch callback or 0
+     */
+    private volatile long applyRequestedAtNanos;
+
+    /**
+     * flash state as reported by the torch callback
+     */
+    private volatile boolean isFlashOn = false;
+
+    /**
+     * true while the torch callback is registered
+     */
+    private final AtomicBoolean opened = new AtomicBoolean(false);
+
+    /**
+     * requested flash state
+     */
+    private final AtomicBoolean flashRequested = new AtomicBoolean(false);
+
+    /**
+     * set while an apply of the requested flash state is queued on the torch thread.
+     * further switches are coalesced into the queued apply.
+     */
+    private final AtomicBoolean applyPending = new AtomicBoolean(false);
+
+    /**
+     * true while the torch is unavailable or its flash state is being restored.
+     * only used on the torch thread.
+     */
+    private boolean recovering;
+
+    /**
+     * true while the torch is lit by this instance, not by the system or another app.
+     * only used on the torch thread.
+     */
+    private boolean torchLitHere;
+
+    /**
+     * System.nanoTime() the torch became unavailable at. only used on the torch thread.
+     */
+    private long recoveryStartedAtNanos;
+
+    /**
+     * delays between the restore attempts. only used on the torch thread.
+     */
+    private final Backoff recoveryBackoff = new Backoff();
+
+    /**
+     * background thread for torch mode calls and torch callbacks
+     */
+    private final HandlerThread torchThread;
+
+    /**
+     * handler of the torch thread
+     */
+    private final Handler torchHandler;
+
+    /**
+     * handler of the main thread for state change notifications
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * listeners to be notified on the main thread
+     */
+    private final StateChangedListeners stateChangedListeners = new StateChangedListeners();
+
+    /**
+     * switches waiting for the torch callback. only used on the torch thread.
+     */
+    private final FlashConfirmations confirmations;
+
+    /**
+     * camera manager
+     */
+    private final CameraManager cameraManager;
+
+    /**
+     * device id from the used camera
+     */
+    private final String cameraID;
+
+    /**
+     * Receives the torch state of the used camera
+     */
+    private final CameraManager.TorchCallback torchCallback = new CameraManager.TorchCallback() {
+        @Override
+        public void onTorchModeChanged(String cameraId, boolean enabled) {
+            if (cameraID.equals(cameraId)) {
+                isFlashOn = enabled;
+                long now = System.nanoTime();
+                long requestedAt = applyRequestedAtNanos;
+                if (recovering) {
+                    // the torch is available again
+                    recover(enabled, now);
+                } else if (requestedAt != 0) {
+                    metrics.getToggleLatency().record(now - requestedAt);
+                    applyRequestedAtNanos = 0;
+                } else if (!applyPending.get()) {
+                    // switched by the system or another app, the request follows the torch
+                    flashRequested.set(enabled);
+                    torchLitHere = false;
+                }
+                if (!enabled) {
+                    torchLitHere = false;
+                }
+                metrics.recordFlash(enabled, now);
+                if (enabled) {
+                    TimeToLight.lightOn();
+                }
+                confirmations.confirm(enabled);
+                notifyStateChanged();
+            }
+        }
+
+        @Override
+        public void onTorchModeUnavailable(String cameraId) {
+            // the camera is used by another app, the torch is off.
+            // the request is kept and restored once the torch is available again.
+            if (cameraID.equals(cameraId)) {
+                isFlashOn = false;
+                torchLitHere = false;
+                if (!recovering) {
+                    recovering = true;
+                    recoveryStartedAtNanos = System.nanoTime();
+                    recoveryBackoff.reset();
+                }
+                torchHandler.removeCallbacks(recoverTask);
+                metrics.recordFailure();
+                metrics.recordFlash(false, System.nanoTime());
+                confirmations.fail(true, OnFlashResultListener.REASON_CAMERA_ERROR);
+                notifyStateChanged();
+            }
+        }
+    };
+
+
+    /**
+     * Creates a torch flash light for one camera
+     *
+     * @param cameraManager The camera manager of this device. must not be null.
+     * @param cameraID      the id of the camera with the flash
+     * @throws CameraAccessException if there is no camera id
+     */
+    TorchFlashLight(CameraManager cameraManager, String cameraID) throws CameraAccessException {
+
+        if (cameraManager == null) {
+            throw new IllegalArgumentException("cameraManager must not be null");
+        }
+
+        this.cameraManager = cameraManager;
+        this.cameraID = cameraID;
+
+        if (this.cameraID == null) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED, "No suitable camera found");
+        }
+
+        this.torchThread = new HandlerThread("FlashLightTorch");
+        this.torchThread.start();
+        this.torchHandler = new Handler(torchThread.getLooper());
+        this.confirmations = new FlashConfirmations(this,
+                new HandlerScheduler(torchHandler), new HandlerScheduler(mainHandler));
+    }
+
+    /**
+     * Returns an instance of a torch mode based SimpleFlashLight
+     *
+     * @param cameraManager The camera manager of this device. must not be null.
+     * @param capabilities  The capabilities of the cameras. must not be null.
+     * @return Instance of a SimpleFlashLight or null if no suitable camera could be found
+     */
+    public static SimpleFlashLight getInstance(CameraManager cameraManager, CameraCapabilities capabilities) {
+        if (instance != null) {
+            return instance;
+        } else {
+            try {
+                if (capabilities == null) {
+                    throw new IllegalArgumentException("capabilities must not be null");
+                }
+                instance = new TorchFlashLight(cameraManager, capabilities.getCameraId());
+                return instance;
+            } catch (CameraAccessException e) {
+                logger.log(WARNING, "Error while finding suitable camera device", e);
+                return null;
+            }
+        }
+    }
+
+
+    public boolean isInitialized() {
+        return cameraManager != null && cameraID != null;
+    }
+
+
+    public boolean openCamera() {
+        if (!isInitialized()) {
+            throw new IllegalStateException("Error: Missing initialization!");
+        }
+
+        if (opened.compareAndSet(false, true)) {
+            return torchHandler.post(openTorchTask);
+        }
+        return true;
+    }
+
+
+    public boolean closeCamera() {
+        if (!isInitialized()) {
+            throw new IllegalStateException("Error: Missing initialization!");
+        }
+
+        if (opened.compareAndSet(true, false)) {
+            flashRequested.set(false);
+            return torchHandler.post(closeTorchTask);
+        }
+        return true;
+    }
+
+
+    public boolean isDeviceOpened() {
+        return opened.get();
+    }
+
+
+    public void switchFlash() {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
+
+        boolean requested;
+        do {
+            requested = flashRequested.get();
+        } while (!flashRequested.compareAndSet(requested, !requested));
+
+        requestFlash(true);
+    }
+
+
+    public void turnOnFlash() {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
+        requestFlash(!flashRequested.getAndSet(true));
+    }
+
+
+    public void turnOffFlash() {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
+        requestFlash(flashRequested.getAndSet(false));
+    }
+
+
+    public void setFlash(final boolean on, final long timeoutMillis, final OnFlashResultListener listener) {
+        if (!isDeviceOpened()) {
+            throw new IllegalStateException("Error: Device is not opened!");
+        }
+
+        // queued before the apply, so the torch callback cannot be missed
+        torchHandler.post(new Runnable() {
+            public void run() {
+                confirmations.add(on, timeoutMillis, listener);
+                if (isFlashOn == on) {
+                    confirmations.confirm(on);
+                }
+            }
+        });
+
+        if (on) {
+            turnOnFlash();
+        } else {
+            turnOffFlash();
+        }
+    }
+
+    public boolean isFlashOn() {
+        return isFlashOn;
+    }
+
+
+    public boolean isFlashRequested() {
+        return flashRequested.get();
+    }
+
+
+    public TorchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Queues an apply of the requested flash state.
+     * While an apply is queued, the request is coalesced into it.
+     *
+     * @param changed true if the request differs from the previous one
+     */
+    private void requestFlash(boolean changed) {
+        if (applyPending.compareAndSet(false, true)) {
+            applyRequestedAtNanos = System.nanoTime();
+            torchHandler.post(applyFlashTask);
+        }
+        if (changed) {
+            notifyStateChanged();
+        }
+    }
+
+
+    public void addOnStateChangedListener(OnStateChangedListener listener) {
+        stateChangedListeners.add(listener);
+    }
+
+
+    public void removeOnStateChangedListener(OnStateChangedListener listener) {
+        stateChangedListeners.remove(listener);
+    }
+
+    /**
+     * The torch mode switches independently of a frame rate, timed edges need no change.
+     *
+     * @param timedEdges ignored
+     */
+    public void setTimedEdges(boolean timedEdges) {
+    }
+
+    /**
+     * The torch mode is not bound to camera frames
+     *
+     * @return 0
+     */
+    public int getFrameIntervalMicros() {
+        return 0;
+    }
+
+    /**
+     * Posts a state change notification to the main thread.
+     */
+    private void notifyStateChanged() {
+        mainHandler.post(notifyStateChangedTask);
+    }
+
+    /**
+     * Delivers the state change to the listener. Runs on the main thread.
+     */
+    private final Runnable notifyStateChangedTask = new Runnable() {
+        public void run() {
+            OnStateChangedListener[] listeners = stateChangedListeners.get();
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onStateChanged(TorchFlashLight.this);
+            }
+        }
+    };
+
+    /**
+     * Sets the torch mode to the requested flash state. Runs on the torch thread.
+     */
+    private final Runnable applyFlashTask = new Runnable() {
+        public void run() {
+            applyPending.set(false);
+            if (!opened.get()) {
+                return;
+            }
+            boolean on = flashRequested.get();
+            if (on != isFlashOn) {
+                setTorchMode(on);
+            } else {
+                applyRequestedAtNanos = 0;
+            }
+        }
+    };
+
+    /**
+     * Starts listening to the torch state. Runs on the torch thread.
+     * The callback reports the current torch state right after registration.
+     */
+    private final Runnable openTorchTask = new Runnable() {
+        public void run() {
+            long start = System.nanoTime();
+            cameraManager.registerTorchCallback(torchCallback, torchHandler);
+            metrics.getOpenLatency().recordSince(start);
+            notifyStateChanged();
+        }
+    };
+
+    /**
+     * Turns the torch off and stops listening. Runs on the torch thread.
+     * A torch lit by the system or another app is left on.
+     */
+    private final Runnable closeTorchTask = new Runnable() {
+        public void run() {
+            boolean leftOn = isFlashOn && !torchLitHere;
+            if (isFlashOn && torchLitHere) {
+                setTorchMode(false);
+            }
+            cameraManager.unregisterTorchCallback(torchCallback);
+            recovering = false;
+            torchHandler.removeCallbacks(recoverTask);
+            // the callback of the switch off does not arrive after the unregistration
+            if (isFlashOn) {
+                metrics.recordFlash(false, System.nanoTime());
+            }
+            isFlashOn = false;
+            if (leftOn) {
+                // the torch of the system or another app stays lit, so no switch off is done
+                confirmations.fail(false, OnFlashResultListener.REASON_CLOSED);
+            } else {
+                confirmations.confirm(false);
+            }
+            confirmations.fail(true, OnFlashResultListener.REASON_CLOSED);
+            notifyStateChanged();
+        }
+    };
+
+    /**
+     * Handles a torch state reported while recovering. Runs on the torch thread.
+     * The recovery is done as soon as the torch has the requested flash state.
+     *
+     * @param enabled the reported torch state
+     * @param now     the current System.nanoTime()
+     */
+    private void recover(boolean enabled, long now) {
+        applyRequestedAtNanos = 0;
+        if (enabled == flashRequested.get()) {
+            recovering = false;
+            torchHandler.removeCallbacks(recoverTask);
+            metrics.getRecoveryLatency().record(now - recoveryStartedAtNanos);
+        } else {
+            torchHandler.removeCallbacks(recoverTask);
+            recoverTask.run();
+        }
+    }
+
+    /**
+     * Restores the requested flash state, retries with backoff on failure. Runs on the torch thread.
+     */
+    private final Runnable recoverTask = new Runnable() {
+        public void run() {
+            if (!recovering || !opened.get()) {
+                return;
+            }
+            metrics.recordReopen();
+            if (!setTorchMode(flashRequested.get())) {
+                torchHandler.postDelayed(recoverTask, recoveryBackoff.nextDelayMillis());
+            }
+        }
+    };
+
+    /**
+     * Sets the torch mode of the used camera.
+     * The flash state itself is updated by the torch callback.
+     *
+     * @param on true to turn the torch on
+     * @return true if the torch mode was set
+     */
+    private boolean setTorchMode(boolean on) {
+        try {
+            cameraManager.setTorchMode(cameraID, on);
+            torchLitHere = on;
+            return true;
+        } catch (CameraAccessException e) {
+            metrics.recordFailure();
+            applyRequestedAtNanos = 0;
+            confirmations.fail(on, OnFlashResultListener.REASON_CAMERA_ERROR);
+            logger.log(WARNING, on ? "Failed to enable flash" : "Failed to disable flash", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TorchMetrics records how a SimpleFlashLight behaves in the field.
+ * <p/>
+ * It keeps latency histograms for opening the camera, configuring the session and
+ * switching the flash and recovering a lost camera,
+ * and counters for failures, reopens and the total flash-on time.
+ * Recording only updates atomic primitives, so it does not allocate on the hot path.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public final class TorchMetrics {
+
+    /**
+     * time from openCamera() until the camera device is opened
+     */
+    private final Histogram openLatency = new Histogram();
+
+    /**
+     * time from the opened device until the flash session is configured
+     */
+    private final Histogram configureLatency = new Histogram();
+
+    /**
+     * time from a switch request until the flash was switched
+     */
+    private final Histogram toggleLatency = new Histogram();
+
+    /**
+     * time from losing the camera until the flash state is restored
+     */
+    private final Histogram recoveryLatency = new Histogram();
+
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong reopens = new AtomicLong();
+
+    /**
+     * accumulated flash-on time of finished flash-on phases
+     */
+    private final AtomicLong torchOnNanos = new AtomicLong();
+
+    /**
+     * start of the running flash-on phase or 0 if the flash is off
+     */
+    private final AtomicLong torchOnSince = new AtomicLong();
+
+
+    public Histogram getOpenLatency() {
+        return openLatency;
+    }
+
+    public Histogram getConfigureLatency() {
+        return configureLatency;
+    }
+
+    public Histogram getToggleLatency() {
+        return toggleLatency;
+    }
+
+    public Histogram getRecoveryLatency() {
+        return recoveryLatency;
+    }
+
+    /**
+     * Counts a failed camera operation
+     */
+    public void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Counts a reopen of a released or lost session
+     */
+    public void recordReopen() {
+        reopens.incrementAndGet();
+    }
+
+    /**
+     * Records the flash state to sum up the flash-on time
+     *
+     * @param on       the new flash state
+     * @param nowNanos the current System.nanoTime()
+     */
+    public void recordFlash(boolean on, long nowNanos) {
+        if (on) {
+            torchOnSince.compareAndSet(0, nowNanos);
+        } else {
+            long since = torchOnSince.getAndSet(0);
+            if (since != 0) {
+                torchOnNanos.addAndGet(nowNanos - since);
+            }
+        }
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getReopenCount() {
+        return reopens.get();
+    }
+
+    /**
+     * Returns the total flash-on time including a running flash-on phase
+     *
+     * @return the flash-on time in milliseconds
+     */
+    public long getTorchOnMillis() {
+        long total = torchOnNanos.get();
+        long since = torchOnSince.get();
+        if (since != 0) {
+            total += System.nanoTime() - since;
+        }
+        return total / 1000000;
+    }
+
+    /**
+     * Writes all metrics in a human readable form
+     *
+     * @param prefix prefix of every line
+     * @param writer the writer to dump to
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "open: " + openLatency);
+        writer.println(prefix + "configure: " + configureLatency);
+        writer.println(prefix + "toggle: " + toggleLatency);
+        writer.println(prefix + "recovery: " + recoveryLatency);
+        writer.println(prefix + "failures: " + getFailureCount());
+        writer.println(prefix + "reopens: " + getReopenCount());
+        writer.println(prefix + "torch on: " + getTorchOnMillis() + " ms");
+    }
+
+    /**
+     * Latency histogram with power-of-two buckets in microseconds.
+     * Bucket i counts latencies below 2^i microseconds, the last bucket counts all longer ones.
+     */
+    public static final class Histogram {
+
+        public static final int BUCKETS = 24;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * Records a latency
+         *
+         * @param nanos the latency in nanoseconds
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+        }
+
+        /**
+         * Records the latency since a start time
+         *
+         * @param startNanos the System.nanoTime() of the start or 0 if there was no start
+         */
+        public void recordSince(long startNanos) {
+            if (startNanos != 0) {
+                record(System.nanoTime() - startNanos);
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMeanMicros() {
+            long n = count.get();
+            return n == 0 ? 0 : sumNanos.get() / n / 1000;
+        }
+
+        public long getMaxMicros() {
+            return maxNanos.get() / 1000;
+        }
+
+        /**
+         * Returns the number of latencies in a bucket
+         *
+         * @param bucket the bucket index, bucket i counts latencies below 2^i microseconds
+         * @return the number of latencies
+         */
+        public long getBucketCount(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        /**
+         * Estimates a percentile by the upper bound of its bucket
+         *
+         * @param percentile the percentile between 0 and 100
+         * @return the upper bound in microseconds
+         */
+        public long getPercentileMicros(int percentile) {
+            long n = count.get();
+            long threshold = (n * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold && seen > 0) {
+                    return i == BUCKETS - 1 ? getMaxMicros() : (1L << i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + getCount()
+                    + ", mean " + getMeanMicros() + " us"
+                    + ", p50 < " + getPercentileMicros(50) + " us"
+                    + ", p90 < " + getPercentileMicros(90) + " us"
+                    + ", p99 < " + getPercentileMicros(99) + " us"
+                    + ", max " + getMaxMicros() + " us";
+        }
+    }
+}
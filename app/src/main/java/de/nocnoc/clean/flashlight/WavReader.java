@@ -0,0 +1,206 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * WavReader streams the samples of a 16 bit PCM WAV file.
+ * <p/>
+ * Multi-channel files are mixed down to mono. The samples are read through a fixed buffer,
+ * so reading does not allocate after construction.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class WavReader {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int BITS_PER_SAMPLE = 16;
+
+    /**
+     * mono samples per read of the stream
+     */
+    private static final int BUFFER_SAMPLES = 1024;
+
+    private final InputStream in;
+    private final int sampleRate;
+    private final int channels;
+    private final byte[] buffer;
+
+    /**
+     * bytes left in the data chunk
+     */
+    private long remaining;
+
+
+    /**
+     * Reads the header up to the data chunk
+     *
+     * @param in the stream of the WAV file, closed by the caller
+     * @throws IOException if the stream is no 16 bit PCM WAV file
+     */
+    WavReader(InputStream in) throws IOException {
+        this.in = in;
+        byte[] header = new byte[16];
+
+        readFully(header, 12);
+        if (!isTag(header, 0, "RIFF") || !isTag(header, 8, "WAVE")) {
+            throw new IOException("No RIFF/WAVE file");
+        }
+
+        int format = -1;
+        int rate = 0;
+        int channelCount = 0;
+        while (true) {
+            readFully(header, 8);
+            long chunkSize = readInt(header, 4) & 0xFFFFFFFFL;
+            if (isTag(header, 0, "fmt ")) {
+                if (chunkSize < 16) {
+                    throw new IOException("Format chunk too short");
+                }
+                readFully(header, 16);
+                format = readShort(header, 0);
+                channelCount = readShort(header, 2);
+                rate = readInt(header, 4);
+                if (format != FORMAT_PCM || readShort(header, 14) != BITS_PER_SAMPLE) {
+                    throw new IOException("Not 16 bit PCM: format " + format + ", " + readShort(header, 14) + " bits");
+                }
+                skip(chunkSize - 16 + (chunkSize & 1));
+            } else if (isTag(header, 0, "data")) {
+                if (format == -1) {
+                    throw new IOException("Data before format chunk");
+                }
+                remaining = chunkSize;
+                break;
+            } else {
+                // chunks are padded to an even size
+                skip(chunkSize + (chunkSize & 1));
+            }
+        }
+        if (channelCount <= 0 || rate <= 0) {
+            throw new IOException("Invalid format: " + channelCount + " channels, " + rate + " Hz");
+        }
+
+        this.sampleRate = rate;
+        this.channels = channelCount;
+        this.buffer = new byte[BUFFER_SAMPLES * channelCount * 2];
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Reads mono samples
+     *
+     * @param pcm    the buffer to fill
+     * @param offset the first sample to fill
+     * @param length the largest number of samples to read
+     * @return the number of samples read or -1 at the end of the data
+     * @throws IOException if the stream could not be read
+     */
+    int read(short[] pcm, int offset, int length) throws IOException {
+        int frameBytes = channels * 2;
+        int bytes = (int) Math.min(Math.min(length, BUFFER_SAMPLES) * (long) frameBytes, remaining);
+        bytes -= bytes % frameBytes;
+        if (bytes <= 0) {
+            return -1;
+        }
+        readFully(buffer, bytes);
+        remaining -= bytes;
+
+        int samples = bytes / frameBytes;
+        for (int i = 0; i < samples; i++) {
+            int sum = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                sum += (short) readShort(buffer, i * frameBytes + channel * 2);
+            }
+            pcm[offset + i] = (short) (sum / channels);
+        }
+        return samples;
+    }
+
+    private void readFully(byte[] target, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(target, read, length - read);
+            if (count < 0) {
+                throw new EOFException("WAV file truncated");
+            }
+            read += count;
+        }
+    }
+
+    private void skip(long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("WAV file truncated");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static boolean isTag(byte[] data, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (data[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads an unsigned little endian 16 bit value
+     */
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * Reads a little endian 32 bit value
+     */
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) | readShort(data, offset + 2) << 16;
+    }
+}
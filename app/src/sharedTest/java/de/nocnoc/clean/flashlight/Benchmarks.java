@@ -0,0 +1,125 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import junit.framework.Assert;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+
+/**
+ * Benchmarks switches the flash and reports the measured latencies for the benchmarks.
+ * <p/>
+ * It spins instead of sleeping and does not need a looper, so the hardware benchmarks
+ * and the simulator benchmarks measure and report in the same way.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class Benchmarks {
+
+    /**
+     * time a switch gets to be reported by the flash light
+     */
+    static final long TIMEOUT_MILLIS = 5000;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Switches the flash and spins until the flash light reports the new state.
+     *
+     * @param flashLight the flash light
+     * @param on         true to turn the flash on, false to turn it off
+     * @return the latency in nanoseconds
+     * @throws junit.framework.AssertionFailedError if the state was not reported within TIMEOUT_MILLIS
+     */
+    static long toggle(SimpleFlashLight flashLight, boolean on) {
+        long start = System.nanoTime();
+        if (on) {
+            flashLight.turnOnFlash();
+        } else {
+            flashLight.turnOffFlash();
+        }
+
+        long deadline = start + TIMEOUT_MILLIS * 1000000;
+        while (flashLight.isFlashOn() != on) {
+            if (System.nanoTime() - deadline > 0) {
+                Assert.fail("Flash was not switched " + (on ? "on" : "off"));
+            }
+            Thread.yield();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Measures and reports alternating turnOnFlash() and turnOffFlash()
+     *
+     * @param logger     the logger of the benchmark
+     * @param name       the name of the measurement
+     * @param flashLight the flash light, the flash has to be off
+     * @param toggles    the number of switches, on and off each count
+     */
+    static void measureToggles(Logger logger, String name, SimpleFlashLight flashLight, int toggles) {
+        long[] onNanos = new long[toggles / 2];
+        long[] offNanos = new long[toggles / 2];
+        for (int i = 0; i < onNanos.length; i++) {
+            onNanos[i] = toggle(flashLight, true);
+            offNanos[i] = toggle(flashLight, false);
+        }
+        report(logger, name + " turnOnFlash", onNanos);
+        report(logger, name + " turnOffFlash", offNanos);
+    }
+
+    /**
+     * Logs the min, median, 90th percentile and max of the latencies
+     *
+     * @param logger the logger of the benchmark
+     * @param name   the name of the measurement
+     * @param nanos  the latencies in nanoseconds, at least one
+     */
+    static void report(Logger logger, String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        logger.log(INFO, name + ": min " + micros(sorted[0])
+                + " us, median " + micros(sorted[sorted.length / 2])
+                + " us, p90 " + micros(sorted[sorted.length * 9 / 10])
+                + " us, max " + micros(sorted[sorted.length - 1]) + " us");
+    }
+
+    static long micros(long nanos) {
+        return nanos / 1000;
+    }
+}
@@ -0,0 +1,72 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import junit.framework.Assert;
+
+/**
+ * SessionStates waits for the session state of a flash light in the tests and benchmarks.
+ * <p/>
+ * It spins instead of sleeping, so a benchmark sees the state change as soon as it happens.
+ * It does not need a looper, so the device tests and the plain JUnit tests share it.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class SessionStates {
+
+    /**
+     * time a session gets to reach a state
+     */
+    static final long TIMEOUT_MILLIS = 5000;
+
+    private SessionStates() {
+    }
+
+    /**
+     * Waits until the session reached a state
+     *
+     * @param flashLight the flash light
+     * @param expected   the state to wait for
+     * @throws junit.framework.AssertionFailedError if the state was not reached within TIMEOUT_MILLIS
+     */
+    static void await(SimpleFlashLightImpl flashLight, SimpleFlashLightImpl.SessionState expected) {
+        long deadline = System.nanoTime() + TIMEOUT_MILLIS * 1000000;
+        while (flashLight.getSessionState() != expected) {
+            if (System.nanoTime() - deadline > 0) {
+                Assert.fail("Session did not reach " + expected + ", is " + flashLight.getSessionState());
+            }
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SimulatedCameraBackend is an in-process camera for the session based flash light.
+ * <p/>
+ * Callbacks are delivered after configurable delays. Disconnects and failing
+ * session configurations can be injected. After a disconnect the camera stays in use
+ * by the simulated other app for a while, then it is reported as available again.
+ * <p/>
+ * The simulator checks the calls it gets and counts every protocol violation,
+ * e.g. a second device opened while one is still open or a switch on a closed session.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class SimulatedCameraBackend implements CameraBackend {
+
+    /**
+     * hands the delayed callbacks to their executors when they are due
+     */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "SimulatedCameraTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Random random = new Random(42);
+
+    private volatile long openDelayMillis;
+    private volatile long configureDelayMillis;
+    private volatile long closeDelayMillis;
+    private volatile long switchLatencyMillis;
+    private volatile long confirmDelayMillis;
+    private volatile double configureFailureRate;
+    private volatile double disconnectRate;
+    private volatile long unavailableMillis;
+
+    /**
+     * System.nanoTime() until the camera is used by the simulated other app
+     */
+    private volatile long unavailableUntilNanos;
+
+    private volatile AvailabilityCallback availabilityCallback;
+    private volatile Executor availabilityExecutor;
+
+    /**
+     * id of the camera which was opened last
+     */
+    private volatile String openedCameraId;
+
+    /**
+     * number of devices which are opened and not closed
+     */
+    private final AtomicInteger openDevices = new AtomicInteger();
+
+    /**
+     * number of protocol violations
+     */
+    private final AtomicInteger violations = new AtomicInteger();
+
+    /**
+     * the device which was opened last or null
+     */
+    private volatile SimulatedDevice currentDevice;
+
+    /**
+     * simulated torch state
+     */
+    private volatile boolean torchOn;
+
+    private final AtomicInteger switchCount = new AtomicInteger();
+
+    /**
+     * System.nanoTime() of every torch edge, the torch starts off. guarded by itself.
+     */
+    private final List<Long> lightEdges = new ArrayList<>();
+
+    /**
+     * true while the simulated session buffer is allocated
+     */
+    private volatile boolean bufferHeld;
+
+    /**
+     * number of simulated session buffer allocations
+     */
+    private final AtomicInteger bufferAllocations = new AtomicInteger();
+
+
+    /**
+     * Sets the delay of the open callback
+     */
+    public void setOpenDelay(long millis) {
+        this.openDelayMillis = millis;
+    }
+
+    /**
+     * Sets the delay of the configured callback
+     */
+    public void setConfigureDelay(long millis) {
+        this.configureDelayMillis = millis;
+    }
+
+    /**
+     * Sets the delay of the closed callback
+     */
+    public void setCloseDelay(long millis) {
+        this.closeDelayMillis = millis;
+    }
+
+    /**
+     * Sets the time a switch blocks the calling thread, like a binder call
+     */
+    public void setSwitchLatency(long millis) {
+        this.switchLatencyMillis = millis;
+    }
+
+    /**
+     * Sets the delay of the flash confirmation after a switch
+     */
+    public void setConfirmDelay(long millis) {
+        this.confirmDelayMillis = millis;
+    }
+
+    /**
+     * Sets the rate of session configurations reporting a failure
+     *
+     * @param rate 0 for none, 1 for all
+     */
+    public void setConfigureFailureRate(double rate) {
+        this.configureFailureRate = rate;
+    }
+
+    /**
+     * Sets the rate of opened devices disconnecting right after the session is configured
+     *
+     * @param rate 0 for none, 1 for all
+     */
+    public void setDisconnectRate(double rate) {
+        this.disconnectRate = rate;
+    }
+
+    /**
+     * Sets the time another app keeps the camera after a disconnect.
+     * Opening the camera meanwhile fails with ERROR_CAMERA_IN_USE.
+     */
+    public void setUnavailableDuration(long millis) {
+        this.unavailableMillis = millis;
+    }
+
+    /**
+     * Disconnects the current device, as if another app took the camera
+     */
+    public void disconnect() {
+        SimulatedDevice device = currentDevice;
+        if (device != null) {
+            device.disconnect();
+        }
+    }
+
+    /**
+     * Returns the simulated torch state
+     *
+     * @return true if an open session has the flash turned on
+     */
+    public boolean isTorchOn() {
+        return torchOn;
+    }
+
+    /**
+     * Samples the simulated torch light like a photodiode
+     *
+     * @param startNanos   System.nanoTime() of the first sample
+     * @param sampleRateHz the sample rate
+     * @param count        the number of samples
+     * @return the light intensities, 1 for a lit torch
+     */
+    public float[] sampleLight(long startNanos, float sampleRateHz, int count) {
+        float[] samples = new float[count];
+        synchronized (lightEdges) {
+            int edge = 0;
+            for (int i = 0; i < count; i++) {
+                long time = startNanos + (long) (i * 1000000000.0 / sampleRateHz);
+                while (edge < lightEdges.size() && lightEdges.get(edge) <= time) {
+                    edge++;
+                }
+                samples[i] = edge % 2 == 1 ? 1f : 0f;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Sets the simulated torch state and records its edges
+     */
+    private void setTorch(boolean on) {
+        synchronized (lightEdges) {
+            if (torchOn != on) {
+                lightEdges.add(System.nanoTime());
+            }
+            torchOn = on;
+        }
+    }
+
+    /**
+     * Returns the number of devices which are opened and not closed
+     */
+    public int getOpenDeviceCount() {
+        return openDevices.get();
+    }
+
+    /**
+     * Returns the number of protocol violations
+     */
+    public int getViolationCount() {
+        return violations.get();
+    }
+
+    /**
+     * Returns true while the session buffer is allocated, i.e. between a session and release()
+     */
+    public boolean isBufferHeld() {
+        return bufferHeld;
+    }
+
+    /**
+     * Returns the number of session buffer allocations
+     */
+    public int getBufferAllocationCount() {
+        return bufferAllocations.get();
+    }
+
+    /**
+     * Returns the number of switches on open sessions
+     */
+    public int getSwitchCount() {
+        return switchCount.get();
+    }
+
+    public void openCamera(String cameraId, final DeviceCallback callback, final Executor executor)
+            throws CameraAccessException {
+
+        if (openDevices.incrementAndGet() > 1) {
+            violations.incrementAndGet();
+        }
+
+        final SimulatedDevice device = new SimulatedDevice(callback, executor);
+        currentDevice = device;
+        openedCameraId = cameraId;
+        final boolean inUse = System.nanoTime() - unavailableUntilNanos < 0;
+        post(executor, new Runnable() {
+            public void run() {
+                if (inUse) {
+                    callback.onError(device, CameraDevice.StateCallback.ERROR_CAMERA_IN_USE);
+                } else {
+                    callback.onOpened(device);
+                }
+            }
+        }, openDelayMillis);
+    }
+
+    public void registerAvailabilityCallback(AvailabilityCallback callback, Executor executor) {
+        if (availabilityCallback != null) {
+            violations.incrementAndGet();
+        }
+        availabilityExecutor = executor;
+        availabilityCallback = callback;
+    }
+
+    public void unregisterAvailabilityCallback(AvailabilityCallback callback) {
+        if (availabilityCallback != callback) {
+            violations.incrementAndGet();
+        }
+        availabilityCallback = null;
+    }
+
+    /**
+     * The simulated other app takes the camera and reports it as available after a while
+     */
+    private void takeByOtherApp() {
+        final String cameraId = openedCameraId;
+        long millis = unavailableMillis;
+        unavailableUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        Executor executor = availabilityExecutor;
+        if (executor == null) {
+            return;
+        }
+        post(executor, new Runnable() {
+            public void run() {
+                AvailabilityCallback callback = availabilityCallback;
+                if (callback != null) {
+                    callback.onCameraAvailable(cameraId);
+                }
+            }
+        }, millis);
+    }
+
+    /**
+     * Frees the simulated buffer. Releasing it while a device is open is a violation.
+     */
+    public void release() {
+        if (openDevices.get() > 0) {
+            violations.incrementAndGet();
+        }
+        bufferHeld = false;
+    }
+
+    private synchronized boolean chance(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    /**
+     * Blocks the calling thread for a while, like a binder call
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delivers a callback on its executor after a delay
+     */
+    private static void post(final Executor executor, final Runnable callback, long delayMillis) {
+        if (delayMillis <= 0) {
+            executor.execute(callback);
+            return;
+        }
+        timer.schedule(new Runnable() {
+            public void run() {
+                executor.execute(callback);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A simulated camera device
+     */
+    private class SimulatedDevice implements Device {
+
+        private final DeviceCallback callback;
+        private final Executor executor;
+        private volatile boolean closed;
+        private volatile SimulatedSession session;
+
+        SimulatedDevice(DeviceCallback callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+        public void createFlashSession(final SessionCallback sessionCallback, final Executor sessionExecutor)
+                throws CameraAccessException {
+
+            if (closed) {
+                violations.incrementAndGet();
+                throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED, "Device closed");
+            }
+
+            // the buffer is reused until it is released
+            if (!bufferHeld) {
+                bufferHeld = true;
+                bufferAllocations.incrementAndGet();
+            }
+
+            final boolean fail = chance(configureFailureRate);
+            final boolean disconnect = chance(disconnectRate);
+            post(sessionExecutor, new Runnable() {
+                public void run() {
+                    if (closed) {
+                        return;
+                    }
+                    if (fail) {
+                        sessionCallback.onConfigureFailed();
+                        return;
+                    }
+                    session = new SimulatedSession(SimulatedDevice.this, sessionCallback, sessionExecutor);
+                    sessionCallback.onConfigured(session);
+                    if (disconnect) {
+                        disconnect();
+                    }
+                }
+            }, configureDelayMillis);
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeSession();
+            post(executor, new Runnable() {
+                public void run() {
+                    openDevices.decrementAndGet();
+                    callback.onClosed(SimulatedDevice.this);
+                }
+            }, closeDelayMillis);
+        }
+
+        void disconnect() {
+            if (closed) {
+                return;
+            }
+            SimulatedSession current = session;
+            if (current != null) {
+                current.disconnect();
+            }
+            takeByOtherApp();
+            executor.execute(new Runnable() {
+                public void run() {
+                    callback.onDisconnected(SimulatedDevice.this);
+                }
+            });
+        }
+
+        private void closeSession() {
+            SimulatedSession current = session;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    /**
+     * A simulated flash session
+     */
+    private class SimulatedSession implements Session {
+
+        private final SimulatedDevice device;
+        private final SessionCallback callback;
+        private final Executor executor;
+        private volatile boolean closed;
+        private volatile boolean disconnected;
+
+        SimulatedSession(SimulatedDevice device, SessionCallback callback, Executor executor) {
+            this.device = device;
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+        public void setFlash(boolean on) throws CameraAccessException {
+            if (closed || device.closed) {
+                violations.incrementAndGet();
+                throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED, "Session closed");
+            }
+            if (disconnected) {
+                throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED, "Disconnected");
+            }
+            long latency = switchLatencyMillis;
+            if (latency > 0) {
+                sleep(latency);
+            }
+            setTorch(on);
+            switchCount.incrementAndGet();
+
+            final boolean confirmed = on;
+            post(executor, new Runnable() {
+                public void run() {
+                    if (!closed && !disconnected && torchOn == confirmed) {
+                        callback.onFlashConfirmed(SimulatedSession.this, confirmed);
+                    }
+                }
+            }, confirmDelayMillis);
+        }
+
+        public void close() {
+            closed = true;
+            setTorch(false);
+        }
+
+        void disconnect() {
+            disconnected = true;
+            setTorch(false);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SimulatedFlashLights creates flash lights which run against a camera backend without a looper.
+ * <p/>
+ * Every flash light gets a ThreadScheduler as its camera thread, all of them share one
+ * ThreadScheduler as their main thread, so the results are delivered one after another like
+ * on the device. shutdown() stops all threads at the end of a test.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class SimulatedFlashLights {
+
+    /**
+     * stands in for the main thread of all flash lights
+     */
+    private final ThreadScheduler mainScheduler = new ThreadScheduler("main");
+
+    /**
+     * the camera threads of the created flash lights
+     */
+    private final List<ThreadScheduler> cameraSchedulers = new ArrayList<>();
+
+    /**
+     * Creates a flash light on its own camera thread
+     *
+     * @param backend  the camera backend, usually a SimulatedCameraBackend
+     * @param cameraId the id of the camera
+     * @return the flash light with the idle timeout disabled
+     */
+    synchronized SimpleFlashLightImpl create(CameraBackend backend, String cameraId) {
+        ThreadScheduler cameraScheduler = new ThreadScheduler("FlashLightCamera" + cameraId);
+        cameraSchedulers.add(cameraScheduler);
+        SimpleFlashLightImpl flashLight = new SimpleFlashLightImpl(backend, cameraId, cameraScheduler, mainScheduler);
+        flashLight.setIdleTimeout(0);
+        return flashLight;
+    }
+
+    /**
+     * Stops the camera threads and the main thread
+     */
+    synchronized void shutdown() {
+        for (ThreadScheduler cameraScheduler : cameraSchedulers) {
+            cameraScheduler.shutdown();
+        }
+        cameraSchedulers.clear();
+        mainScheduler.shutdown();
+    }
+}
@@ -0,0 +1,127 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThreadScheduler runs the tasks of a flash light on a thread of its own, without a looper.
+ * <p/>
+ * It stands in for the camera thread and the main thread when the flash light runs
+ * against the simulator in a plain JVM. Like a Handler, it runs the tasks one after another
+ * and cancelling a task removes all of its pending runs.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+final class ThreadScheduler implements TaskScheduler {
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * pending runs by task. guarded by itself.
+     */
+    private final Map<Runnable, List<ScheduledFuture<?>>> pending = new HashMap<>();
+
+    /**
+     * Starts the thread of the scheduler
+     *
+     * @param name the name of the thread
+     */
+    ThreadScheduler(final String name) {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        schedule(task, 0);
+    }
+
+    public void schedule(final Runnable task, long delayMillis) {
+        synchronized (pending) {
+            final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+            future[0] = executor.schedule(new Runnable() {
+                public void run() {
+                    synchronized (pending) {
+                        List<ScheduledFuture<?>> runs = pending.get(task);
+                        if (runs == null || !runs.remove(future[0])) {
+                            // cancelled while it was about to start
+                            return;
+                        }
+                        if (runs.isEmpty()) {
+                            pending.remove(task);
+                        }
+                    }
+                    task.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+
+            List<ScheduledFuture<?>> runs = pending.get(task);
+            if (runs == null) {
+                runs = new ArrayList<>();
+                pending.put(task, runs);
+            }
+            runs.add(future[0]);
+        }
+    }
+
+    public void cancel(Runnable task) {
+        synchronized (pending) {
+            List<ScheduledFuture<?>> runs = pending.remove(task);
+            if (runs != null) {
+                for (ScheduledFuture<?> run : runs) {
+                    run.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the thread. Pending tasks are dropped.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
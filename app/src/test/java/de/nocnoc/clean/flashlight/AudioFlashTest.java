@@ -0,0 +1,248 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds synthesized WAV files through the audio pipeline, headless and without hardware.
+ * <p/>
+ * The files contain kick-like bursts at known times over a noise floor.
+ * The detected beat times, the switches of the simulated camera and the switch latency are checked.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class AudioFlashTest {
+
+    private static final Logger logger = Logger.getLogger(AudioFlashTest.class.getSimpleName());
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BEAT_INTERVAL_MILLIS = 500;
+    private static final int BEATS = 16;
+
+    /**
+     * beats are detected by the end of their frame, plus the rise of the burst
+     */
+    private static final long TOLERANCE_SAMPLES = 2 * BeatDetector.DEFAULT_FRAME_SIZE;
+
+    /**
+     * delay of the simulated confirmation, i.e. the frames until the flash fires
+     */
+    private static final long SIMULATED_CONFIRM_DELAY_MILLIS = 20;
+
+    /**
+     * bound of the 90th percentile of the switch latency, the confirm delay plus the thread hops
+     */
+    private static final long SWITCH_LATENCY_P90_MICROS = 100000;
+
+    private final Random random = new Random(42);
+
+    private SimulatedFlashLights flashLights;
+
+    @Before
+    public void setUp() {
+        flashLights = new SimulatedFlashLights();
+    }
+
+    @After
+    public void tearDown() {
+        flashLights.shutdown();
+    }
+
+    @Test
+    public void testBeatTimestamps() throws Exception {
+        final List<Long> beats = new ArrayList<>();
+        BeatDetector detector = new BeatDetector(SAMPLE_RATE, new BeatDetector.OnBeatListener() {
+            public void onBeat(long samplePosition) {
+                beats.add(samplePosition);
+            }
+        });
+
+        WavReader reader = new WavReader(synthesize(1));
+        assertEquals(SAMPLE_RATE, reader.getSampleRate());
+        short[] pcm = new short[777];
+        int read;
+        while ((read = reader.read(pcm, 0, pcm.length)) > 0) {
+            detector.process(pcm, 0, read);
+        }
+
+        logger.log(INFO, "beats at samples " + beats);
+        assertEquals("Detected beats", BEATS, beats.size());
+        for (int i = 0; i < beats.size(); i++) {
+            long expected = beatPosition(i);
+            long detected = beats.get(i);
+            assertTrue("Beat " + i + " at " + detected + ", expected " + expected,
+                    detected >= expected && detected - expected <= TOLERANCE_SAMPLES);
+        }
+    }
+
+    @Test
+    public void testStereoMixedDown() throws Exception {
+        WavReader reader = new WavReader(synthesize(2));
+        assertEquals(2, reader.getChannels());
+
+        final int[] beatCount = new int[1];
+        BeatDetector detector = new BeatDetector(reader.getSampleRate(), new BeatDetector.OnBeatListener() {
+            public void onBeat(long samplePosition) {
+                beatCount[0]++;
+            }
+        });
+        short[] pcm = new short[BeatDetector.DEFAULT_FRAME_SIZE];
+        int read;
+        while ((read = reader.read(pcm, 0, pcm.length)) > 0) {
+            detector.process(pcm, 0, read);
+        }
+        assertEquals("Detected beats", BEATS, beatCount[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFileRejected() throws Exception {
+        new WavReader(new ByteArrayInputStream(new byte[]{'R', 'I', 'F', 'F', 0, 0, 0, 0}));
+    }
+
+    /**
+     * Drives the simulated camera by a WAV file in real time and reports the switch latency,
+     * which is recorded when the simulated camera confirms the flash on the camera thread.
+     * It includes the confirm delay, but not the delivery to the main thread.
+     */
+    @Test
+    public void testControllerDrivesFlash() throws Exception {
+        SimulatedCameraBackend simulator = new SimulatedCameraBackend();
+        simulator.setConfirmDelay(SIMULATED_CONFIRM_DELAY_MILLIS);
+        SimpleFlashLightImpl flashLight = flashLights.create(simulator, "0");
+        try {
+            assertTrue(flashLight.openCamera());
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+            AudioFlashController controller = new AudioFlashController(flashLight);
+            controller.playWav(synthesize(1), true);
+
+            // the confirmations are delivered on the main thread
+            long deadline = System.currentTimeMillis() + 2000;
+            while (controller.getSwitchLatency().getCount() < BEATS && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            logger.log(INFO, "audio switch latency: " + controller.getSwitchLatency());
+            assertEquals("Beats", BEATS, controller.getBeatCount());
+            TorchMetrics.Histogram latency = controller.getSwitchLatency();
+            assertEquals("Confirmed switches", BEATS, latency.getCount());
+            assertTrue("Switch latency below the confirm delay: " + latency,
+                    latency.getMeanMicros() >= SIMULATED_CONFIRM_DELAY_MILLIS * 1000);
+            assertTrue("Switch latency above bound: " + latency,
+                    latency.getPercentileMicros(90) < SWITCH_LATENCY_P90_MICROS);
+            assertFalse("Flash left on", flashLight.isFlashRequested());
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    private static long beatPosition(int beat) {
+        return (long) SAMPLE_RATE * (BEAT_INTERVAL_MILLIS / 2 + beat * BEAT_INTERVAL_MILLIS) / 1000;
+    }
+
+    /**
+     * Synthesizes a WAV file of decaying 60 Hz bursts over a noise floor
+     *
+     * @param channels the number of channels, all with the same signal
+     */
+    private InputStream synthesize(int channels) {
+        int samples = SAMPLE_RATE * (BEATS * BEAT_INTERVAL_MILLIS + BEAT_INTERVAL_MILLIS) / 1000;
+        float[] signal = new float[samples];
+        for (int i = 0; i < samples; i++) {
+            signal[i] = (random.nextFloat() - 0.5f) * 0.04f;
+        }
+        for (int beat = 0; beat < BEATS; beat++) {
+            long start = beatPosition(beat);
+            for (int i = 0; i < SAMPLE_RATE / 10 && start + i < samples; i++) {
+                double t = (double) i / SAMPLE_RATE;
+                signal[(int) (start + i)] += (float) (0.8 * Math.exp(-t / 0.03) * Math.sin(2 * Math.PI * 60 * t));
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int dataBytes = samples * channels * 2;
+        writeTag(out, "RIFF");
+        writeInt(out, 36 + dataBytes);
+        writeTag(out, "WAVE");
+        writeTag(out, "fmt ");
+        writeInt(out, 16);
+        writeShort(out, 1);
+        writeShort(out, channels);
+        writeInt(out, SAMPLE_RATE);
+        writeInt(out, SAMPLE_RATE * channels * 2);
+        writeShort(out, channels * 2);
+        writeShort(out, 16);
+        writeTag(out, "data");
+        writeInt(out, dataBytes);
+        for (float sample : signal) {
+            int value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * 32767)));
+            for (int channel = 0; channel < channels; channel++) {
+                writeShort(out, value);
+            }
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, String tag) {
+        for (int i = 0; i < 4; i++) {
+            out.write(tag.charAt(i));
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >> 8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value);
+        writeShort(out, value >> 16);
+    }
+}
@@ -0,0 +1,103 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays patterns on a flash light running against the camera simulator
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class FlashPatternPlayerTest {
+
+    private static final int PHASE_MILLIS = 30;
+
+    private SimulatedFlashLights flashLights;
+    private SimulatedCameraBackend simulator;
+    private SimpleFlashLightImpl flashLight;
+
+    @Before
+    public void setUp() {
+        flashLights = new SimulatedFlashLights();
+        simulator = new SimulatedCameraBackend();
+        flashLight = flashLights.create(simulator, "0");
+        flashLight.openCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+    }
+
+    @After
+    public void tearDown() {
+        flashLight.closeCamera();
+        flashLights.shutdown();
+    }
+
+    /**
+     * Every edge is confirmed, the lateness is measured from the deadline to the confirmation
+     */
+    @Test
+    public void testEdgesConfirmed() throws Exception {
+        FlashPatternPlayer player = new FlashPatternPlayer(flashLight);
+        player.play(FlashPattern.of(PHASE_MILLIS, PHASE_MILLIS, PHASE_MILLIS, PHASE_MILLIS), false);
+        assertTrue("Pattern not finished", player.awaitFinished(SessionStates.TIMEOUT_MILLIS));
+
+        assertEquals("Confirmed edges", 4, player.getEdgeCount());
+        assertEquals("Dropped edges", 0, player.getDroppedEdgeCount());
+        assertEquals(3 * PHASE_MILLIS * 1000, player.getPlayedMicros());
+        assertTrue("Negative lateness", player.getMeanLatenessMicros() >= 0);
+        assertTrue("Edges shifted by more than a phase",
+                player.getLatenessSpreadMicros() < PHASE_MILLIS * 1000);
+        assertFalse(simulator.isTorchOn());
+    }
+
+    /**
+     * A pattern ending with a flash phase is closed by a final edge
+     */
+    @Test
+    public void testFinalEdgeTurnsOff() throws Exception {
+        FlashPatternPlayer player = new FlashPatternPlayer(flashLight);
+        player.play(FlashPattern.of(PHASE_MILLIS), false);
+        assertTrue("Pattern not finished", player.awaitFinished(SessionStates.TIMEOUT_MILLIS));
+
+        assertEquals("Confirmed edges", 2, player.getEdgeCount());
+        assertFalse(simulator.isTorchOn());
+        assertFalse(flashLight.isFlashOn());
+    }
+}
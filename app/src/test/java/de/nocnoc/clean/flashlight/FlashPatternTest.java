@@ -0,0 +1,124 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the durations compiled by FlashPattern
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class FlashPatternTest {
+
+    /**
+     * SOS in units: three dots, a letter gap, three dashes, a letter gap, three dots and a word gap
+     */
+    @Test
+    public void testSosTiming() {
+        assertDurations(FlashPattern.sos(), FlashPattern.DEFAULT_MORSE_UNIT_MILLIS * 1000,
+                1, 1, 1, 1, 1, 3,
+                3, 1, 3, 1, 3, 3,
+                1, 1, 1, 1, 1, 7);
+    }
+
+    /**
+     * The symbol gap is one unit, the letter gap three, the word gap seven
+     */
+    @Test
+    public void testMorseGaps() {
+        assertDurations(FlashPattern.morse("ET", 100), 100000, 1, 3, 3, 7);
+        assertDurations(FlashPattern.morse("e e", 100), 100000, 1, 7, 1, 7);
+        assertDurations(FlashPattern.morse("I", 100), 100000, 1, 1, 1, 7);
+    }
+
+    @Test
+    public void testMorseSkipsUnknownCharacters() {
+        assertDurations(FlashPattern.morse("E?", 100), 100000, 1, 7);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMorseRejectsEmptyUnit() {
+        FlashPattern.morse("SOS", 0);
+    }
+
+    /**
+     * Adjacent phases of the same state become one phase, empty phases are dropped
+     */
+    @Test
+    public void testAdjacentEqualPhasesMerged() {
+        assertDurations(FlashPattern.of(100, 0, 200, 50), 1000, 300, 50);
+        assertDurations(FlashPattern.of(100, 50, 0, 25), 1000, 100, 75);
+    }
+
+    /**
+     * A pattern starting with an off phase gets an empty on phase, so even indices stay on
+     */
+    @Test
+    public void testLeadingOffPhase() {
+        FlashPattern pattern = FlashPattern.of(0, 50, 100);
+        assertDurations(pattern, 1000, 0, 50, 100);
+        assertTrue(pattern.isOn(0));
+        assertFalse(pattern.isOn(1));
+    }
+
+    /**
+     * Every Manchester bit has an edge in its middle, halves of the same state across bits are merged
+     * and the pattern ends with an idle off phase of two bits
+     */
+    @Test
+    public void testManchesterTrailingOffPhase() {
+        FlashPattern pattern = FlashPattern.manchester(new byte[]{(byte) 0x80}, 1000);
+        assertDurations(pattern, 1,
+                500, 1000, 500,
+                500, 500, 500, 500, 500, 500, 500, 500, 500, 500, 500, 500,
+                2000);
+        assertFalse("Pattern does not end dark", pattern.isOn(pattern.size() - 1));
+        assertEquals(8 * 1000 + 2000, pattern.getTotalMicros());
+    }
+
+    private static void assertDurations(FlashPattern pattern, int unitMicros, int... units) {
+        assertEquals(pattern.toString(), units.length, pattern.size());
+        long total = 0;
+        for (int i = 0; i < units.length; i++) {
+            assertEquals(pattern + " phase " + i, units[i] * unitMicros, pattern.getDurationMicros(i));
+            total += units[i] * (long) unitMicros;
+        }
+        assertEquals(total, pattern.getTotalMicros());
+    }
+}
@@ -0,0 +1,225 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the optical transmission without hardware.
+ * <p/>
+ * The frames are rendered into light samples with jittered edges and noise,
+ * or sent by the simulated camera and sampled like a photodiode, and decoded again.
+ * The simulated flash lights run on ThreadSchedulers, so the tests run in a plain JVM.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class OpticalLinkTest {
+
+    private static final Logger logger = Logger.getLogger(OpticalLinkTest.class.getSimpleName());
+
+    private static final int BIT_MICROS = 10000;
+    private static final float SAMPLE_RATE_HZ = 4000;
+    private static final long SETTLE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * dark bits before and after a rendered frame
+     */
+    private static final int LEAD_BITS = 5;
+
+    /**
+     * bit duration of the transmission over the simulated camera, its quarter bit tolerates
+     * the scheduling delays of a loaded build machine
+     */
+    private static final int SIMULATED_BIT_MICROS = 100000;
+
+    private final Random random = new Random(42);
+
+    private SimulatedFlashLights flashLights;
+
+    @Before
+    public void setUp() {
+        flashLights = new SimulatedFlashLights();
+    }
+
+    @After
+    public void tearDown() {
+        flashLights.shutdown();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] payload = "ID:4711".getBytes("UTF-8");
+        float[] samples = render(OpticalFrame.encode(payload, BIT_MICROS), 0, 0);
+        assertTrue(Arrays.equals(payload, OpticalDecoder.decode(samples, SAMPLE_RATE_HZ, BIT_MICROS)));
+    }
+
+    @Test
+    public void testRoundTripWithJitterAndNoise() throws Exception {
+        byte[] payload = new byte[OpticalFrame.MAX_PAYLOAD];
+        random.nextBytes(payload);
+        // every edge is late by up to a fifth of a bit
+        float[] samples = render(OpticalFrame.encode(payload, BIT_MICROS), BIT_MICROS / 5, 0.2f);
+        assertTrue(Arrays.equals(payload, OpticalDecoder.decode(samples, SAMPLE_RATE_HZ, BIT_MICROS)));
+    }
+
+    @Test
+    public void testEmptyPayload() throws Exception {
+        float[] samples = render(OpticalFrame.encode(new byte[0], BIT_MICROS), 0, 0);
+        byte[] decoded = OpticalDecoder.decode(samples, SAMPLE_RATE_HZ, BIT_MICROS);
+        assertNotNull(decoded);
+        assertEquals(0, decoded.length);
+    }
+
+    @Test
+    public void testCorruptedFrameRejected() throws Exception {
+        byte[] payload = "ID:4711".getBytes("UTF-8");
+        FlashPattern frame = OpticalFrame.encode(payload, BIT_MICROS);
+        float[] samples = render(frame, 0, 0);
+
+        // swaps the halves of the fourth payload bit, so its coding stays valid
+        int samplesPerBit = (int) (SAMPLE_RATE_HZ * BIT_MICROS / 1000000);
+        int bitStart = (LEAD_BITS + (OpticalFrame.OVERHEAD - 1) * 8 + 3) * samplesPerBit;
+        for (int i = 0; i < samplesPerBit; i++) {
+            samples[bitStart + i] = 1f - samples[bitStart + i];
+        }
+        assertNull(OpticalDecoder.decode(samples, SAMPLE_RATE_HZ, BIT_MICROS));
+    }
+
+    @Test
+    public void testTruncatedFrameRejected() throws Exception {
+        float[] samples = render(OpticalFrame.encode("ID:4711".getBytes("UTF-8"), BIT_MICROS), 0, 0);
+        assertNull(OpticalDecoder.decode(Arrays.copyOf(samples, samples.length / 2),
+                SAMPLE_RATE_HZ, BIT_MICROS));
+    }
+
+    /**
+     * Sends a frame by the simulated camera and reports the achieved rate and timing error
+     */
+    @Test
+    public void testTransmitterOnSimulatedCamera() throws Exception {
+        SimulatedCameraBackend simulator = new SimulatedCameraBackend();
+        SimpleFlashLightImpl flashLight = flashLights.create(simulator, "0");
+        try {
+            assertTrue(flashLight.openCamera());
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+
+            OpticalTransmitter transmitter = new OpticalTransmitter(flashLight, SIMULATED_BIT_MICROS);
+            long start = System.nanoTime();
+            transmitter.send("ID:4711");
+            assertTrue("Frame not sent", transmitter.awaitSent(SETTLE_TIMEOUT_MILLIS * 4));
+            long elapsedNanos = System.nanoTime() - start;
+
+            logger.log(INFO, "optical transmission: " + transmitter.getBitsPerSecond() + " bit/s, timing error mean "
+                    + transmitter.getMeanTimingErrorMicros() + " us, max "
+                    + transmitter.getMaxTimingErrorMicros() + " us");
+            assertEquals("Dropped edges", 0, transmitter.getDroppedEdgeCount());
+            assertTrue("Timing error above tolerance",
+                    transmitter.getMaxTimingErrorMicros() < transmitter.getToleratedTimingErrorMicros());
+
+            // the last bit ends after the last edge
+            long sampledMicros = elapsedNanos / 1000 + 2 * SIMULATED_BIT_MICROS;
+            int count = (int) (sampledMicros * SAMPLE_RATE_HZ / 1000000);
+            float[] samples = simulator.sampleLight(start, SAMPLE_RATE_HZ, count);
+            assertEquals("ID:4711", new String(
+                    OpticalDecoder.decode(samples, SAMPLE_RATE_HZ, SIMULATED_BIT_MICROS), "UTF-8"));
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    /**
+     * The simulated camera is not bound to frames, so the derived bit duration is the shortest one
+     */
+    @Test
+    public void testBitDurationDerivedFromFrameRate() throws Exception {
+        SimulatedCameraBackend simulator = new SimulatedCameraBackend();
+        SimpleFlashLightImpl flashLight = flashLights.create(simulator, "0");
+        try {
+            assertTrue(flashLight.openCamera());
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+
+            OpticalTransmitter transmitter = new OpticalTransmitter(flashLight);
+            transmitter.send("ID");
+            assertEquals(OpticalTransmitter.MIN_BIT_MICROS, transmitter.getBitMicros());
+            transmitter.stop();
+            assertTrue("Frame not stopped", transmitter.awaitSent(SETTLE_TIMEOUT_MILLIS));
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    /**
+     * Renders a pattern into light samples
+     *
+     * @param pattern        the pattern
+     * @param maxDelayMicros the largest random delay of an edge
+     * @param noise          the amplitude of the random noise
+     * @return the samples, with a leading and trailing dark part
+     */
+    private float[] render(FlashPattern pattern, int maxDelayMicros, float noise) {
+        long leadMicros = LEAD_BITS * BIT_MICROS;
+        int count = (int) ((2 * leadMicros + pattern.getTotalMicros()) * SAMPLE_RATE_HZ / 1000000);
+        float[] samples = new float[count];
+
+        long edgeMicros = leadMicros;
+        for (int phase = 0; phase < pattern.size(); phase++) {
+            long from = edgeMicros + (maxDelayMicros > 0 ? random.nextInt(maxDelayMicros) : 0);
+            edgeMicros += pattern.getDurationMicros(phase);
+            if (pattern.isOn(phase)) {
+                long to = edgeMicros + (maxDelayMicros > 0 ? random.nextInt(maxDelayMicros) : 0);
+                int first = (int) (from * SAMPLE_RATE_HZ / 1000000);
+                int last = Math.min(count, (int) (to * SAMPLE_RATE_HZ / 1000000));
+                for (int i = first; i < last; i++) {
+                    samples[i] = 1f;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            samples[i] += (random.nextFloat() - 0.5f) * noise;
+        }
+        return samples;
+    }
+}
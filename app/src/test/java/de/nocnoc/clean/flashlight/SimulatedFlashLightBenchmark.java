@@ -0,0 +1,203 @@
+package de.nocnoc.clean.flashlight;
+
+/*
+ This file is part of CleanFlashLight.
+
+ CleanFlashLight is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ CleanFlashLight is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+
+ Diese Datei ist Teil von CleanFlashLight.
+
+ CleanFlashLight ist Freie Software: Sie koennen sie unter den Bedingungen
+ der GNU Lesser General Public License, wie von der Free Software Foundation,
+ Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spaeteren
+ veroeffentlichten Version, weiterverbreiten und/oder modifizieren.
+
+ CleanFlashLight wird in der Hoffnung, dass es nuetzlich sein wird, aber
+ OHNE JEDE GEWAEHRLEISTUNG, bereitgestellt; sogar ohne die implizite
+ Gewaehrleistung der MARKTFAEHIGKEIT oder EIGNUNG FUER EINEN BESTIMMTEN ZWECK.
+ Siehe die GNU Lesser General Public License fuer weitere Details.
+
+ Sie sollten eine Kopie der GNU Lesser General Public License zusammen mit diesem
+ Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks the flash light against the camera simulator with a fixed callback latency.
+ * <p/>
+ * The camera work and the notifications run on ThreadSchedulers instead of looper threads,
+ * so the benchmarks measure the overhead of the flash light itself in a plain JVM, without a device.
+ * The allocations per toggle are counted by the allocation counters of the JVM threads.
+ * The hardware benchmarks are in FlashLightBenchmark.
+ * <p/>
+ *
+ * @author nocnoc
+ */
+public class SimulatedFlashLightBenchmark {
+
+    private static final Logger logger = Logger.getLogger(SimulatedFlashLightBenchmark.class.getSimpleName());
+
+    private static final int OPEN_ITERATIONS = 10;
+    private static final int TOGGLE_ITERATIONS = 200;
+    private static final long SIMULATED_LATENCY_MILLIS = 20;
+
+    private SimulatedFlashLights flashLights;
+
+    @Before
+    public void setUp() {
+        flashLights = new SimulatedFlashLights();
+    }
+
+    @After
+    public void tearDown() {
+        flashLights.shutdown();
+    }
+
+    /**
+     * Measures open and toggle latency against the camera simulator.
+     */
+    @Test
+    public void testSimulatedLatency() throws Exception {
+        SimpleFlashLightImpl flashLight = createFlashLight("0");
+
+        long[] openNanos = new long[OPEN_ITERATIONS];
+        for (int i = 0; i < OPEN_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            flashLight.openCamera();
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+            openNanos[i] = System.nanoTime() - start;
+
+            flashLight.closeCamera();
+            SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.CLOSED);
+        }
+        Benchmarks.report(logger, "simulated open to READY", openNanos);
+
+        flashLight.openCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        try {
+            Benchmarks.measureToggles(logger, "simulated", flashLight, TOGGLE_ITERATIONS);
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    /**
+     * Measures openCamera() and turnOnFlash() until all simulated flash units are lit.
+     * The units open in parallel, so the time has to stay below opening them one after another.
+     */
+    @Test
+    public void testSimulatedMultiFlashOpen() throws Exception {
+        SimpleFlashLightImpl[] units = new SimpleFlashLightImpl[3];
+        for (int i = 0; i < units.length; i++) {
+            units[i] = createFlashLight(String.valueOf(i));
+        }
+        MultiFlashLight flashLight = new MultiFlashLight(units);
+
+        long[] openNanos = new long[OPEN_ITERATIONS];
+        for (int i = 0; i < OPEN_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            flashLight.openCamera();
+            flashLight.turnOnFlash();
+            for (SimpleFlashLightImpl unit : units) {
+                SessionStates.await(unit, SimpleFlashLightImpl.SessionState.READY);
+            }
+            openNanos[i] = System.nanoTime() - start;
+
+            flashLight.closeCamera();
+            for (SimpleFlashLightImpl unit : units) {
+                SessionStates.await(unit, SimpleFlashLightImpl.SessionState.CLOSED);
+            }
+        }
+        Benchmarks.report(logger, "simulated " + units.length + " units open to lit", openNanos);
+
+        long[] sorted = openNanos.clone();
+        Arrays.sort(sorted);
+        long sequentialMicros = units.length * 2 * SIMULATED_LATENCY_MILLIS * 1000;
+        assertTrue("Units were not opened in parallel",
+                Benchmarks.micros(sorted[sorted.length / 2]) < sequentialMicros);
+    }
+
+    /**
+     * Measures the bytes allocated by all threads per toggle, i.e. by the caller, the camera thread,
+     * the main thread and the simulator. Needs a JVM which counts the allocations per thread.
+     */
+    @Test
+    public void testSimulatedAllocationsPerToggle() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            logger.log(WARNING, "allocations per toggle skipped: the JVM does not count allocations per thread");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        SimpleFlashLightImpl flashLight = createFlashLight("0");
+        flashLight.openCamera();
+        SessionStates.await(flashLight, SimpleFlashLightImpl.SessionState.READY);
+        try {
+            // warm up
+            for (int i = 0; i < TOGGLE_ITERATIONS; i++) {
+                Benchmarks.toggle(flashLight, i % 2 == 0);
+            }
+
+            long[] threadIds = allocations.getAllThreadIds();
+            long before = sum(allocations.getThreadAllocatedBytes(threadIds));
+            for (int i = 0; i < TOGGLE_ITERATIONS; i++) {
+                Benchmarks.toggle(flashLight, i % 2 == 0);
+            }
+            long bytes = sum(allocations.getThreadAllocatedBytes(threadIds)) - before;
+
+            logger.log(INFO, "simulated allocations per toggle: " + (bytes / TOGGLE_ITERATIONS) + " bytes");
+        } finally {
+            flashLight.closeCamera();
+        }
+    }
+
+    /**
+     * Creates a flash light on its own simulator and camera thread
+     */
+    private SimpleFlashLightImpl createFlashLight(String cameraId) {
+        SimulatedCameraBackend simulator = new SimulatedCameraBackend();
+        simulator.setOpenDelay(SIMULATED_LATENCY_MILLIS);
+        simulator.setConfigureDelay(SIMULATED_LATENCY_MILLIS);
+        simulator.setCloseDelay(SIMULATED_LATENCY_MILLIS);
+        return flashLights.create(simulator, cameraId);
+    }
+
+    /**
+     * Sums the allocated bytes of threads, -1 marks a thread which is gone
+     */
+    private static long sum(long[] bytes) {
+        long sum = 0;
+        for (long value : bytes) {
+            if (value > 0) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+}